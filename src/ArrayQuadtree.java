@@ -0,0 +1,272 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A point quadtree with the same shape and queries as a bulk-built PointQuadtree, but stored as
+ * parallel arrays rather than a node object per point: node i's point coords, region and children
+ * are at index i (children at 4i through 4i+3, for quadrants 1-4), and its element is referred to by id
+ * (its index in the list the tree was built from). Queries read primitive arrays instead of chasing
+ * node references and calling getX()/getY() on each element.
+ *
+ * The tree is a snapshot of where the points were when it was built; rebuild it after they move.
+ */
+public class ArrayQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final ThreadLocal<IntStack> stacks = ThreadLocal.withInitial(IntStack::new);	// for walking trees
+
+	private final List<E> elements;				// the points, by id
+	private final int n;						// number of nodes (= number of points)
+	private final int[] element;				// id of the point anchoring each node
+	private final double[] px, py;				// where each node's point was when built; splits its children
+	private final double[] x1, y1, x2, y2;		// each node's region
+	private final int[] children;				// each node's 4 children, -1 where there's none
+
+	/**
+	 * A span of the ids still to be made into a subtree, filling the given child slot
+	 */
+	private static class Pending {
+		int from, to;				// ids[from] through ids[to-1]
+		int slot;					// index in children to point at the new node (-1 for the root)
+		double x1, y1, x2, y2;		// region of the new node
+
+		Pending(int from, int to, int slot, double x1, double y1, double x2, double y2) {
+			this.from = from; this.to = to; this.slot = slot;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		}
+	}
+
+	/**
+	 * Builds the tree, anchoring each region at the point nearest the median x and y of the points in it
+	 * (as PointQuadtree.build does), numbering the nodes parents first, quadrants in order
+	 * @param points	points to put in the tree (at least one, all within the region, which the queries prune by)
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @return			the tree
+	 */
+	public static <E extends Point2D> ArrayQuadtree<E> build(List<E> points, double x1, double y1, double x2, double y2) {
+		if (points.isEmpty()) throw new IllegalArgumentException("can't build a quadtree without any points");
+		for (E p : points) {
+			if (!Geometry.pointInRectangle(p.getX(), p.getY(), x1, y1, x2, y2)) throw new IllegalArgumentException("point "+p+" is outside the tree's region");
+		}
+		return new ArrayQuadtree<E>(points, x1, y1, x2, y2);
+	}
+
+	private ArrayQuadtree(List<E> points, double rx1, double ry1, double rx2, double ry2) {
+		elements = new ArrayList<E>(points);
+		n = elements.size();
+		element = new int[n];
+		px = new double[n]; py = new double[n];
+		x1 = new double[n]; y1 = new double[n]; x2 = new double[n]; y2 = new double[n];
+		children = new int[4*n];
+		Arrays.fill(children, -1);
+
+		// coords of each id, and the ids, to be rearranged so that each subtree's are together
+		double[] xs = new double[n], ys = new double[n];
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = elements.get(i).getX();
+			ys[i] = elements.get(i).getY();
+			ids[i] = i;
+		}
+		double[] scratch = new double[n];
+		int[] buffer = new int[n];
+		byte[] quadrants = new byte[n];
+
+		int nodes = 0;
+		Deque<Pending> todo = new ArrayDeque<Pending>();
+		todo.push(new Pending(0, n, -1, rx1, ry1, rx2, ry2));
+		while (!todo.isEmpty()) {
+			Pending span = todo.pop();
+			int node = nodes++;
+			if (span.slot >= 0) children[span.slot] = node;
+
+			// the anchor goes first in the span; the rest get split by quadrant
+			int anchor = medianPosition(ids, xs, ys, span.from, span.to, scratch);
+			int id = ids[anchor];
+			ids[anchor] = ids[span.from];
+			ids[span.from] = id;
+
+			element[node] = id;
+			px[node] = xs[id]; py[node] = ys[id];
+			x1[node] = span.x1; y1[node] = span.y1; x2[node] = span.x2; y2[node] = span.y2;
+
+			// counting sort of the rest of the span by quadrant
+			int[] starts = new int[6];
+			for (int k = span.from+1; k < span.to; k++) {
+				quadrants[k] = (byte)PointQuadtree.findQuadrant(px[node], py[node], xs[ids[k]], ys[ids[k]]);
+				starts[quadrants[k]+1]++;
+			}
+			starts[1] = span.from+1;
+			for (int q = 2; q < 6; q++) starts[q] += starts[q-1];
+			int[] next = Arrays.copyOf(starts, 5);
+			for (int k = span.from+1; k < span.to; k++) buffer[next[quadrants[k]]++] = ids[k];
+			System.arraycopy(buffer, span.from+1, ids, span.from+1, span.to-span.from-1);
+
+			// last quadrant pushed first, so that quadrant 1 gets the next node number
+			for (int q = 4; q > 0; q--) {
+				if (starts[q+1] == starts[q]) continue;
+				double[] region = PointQuadtree.childRegion(q, px[node], py[node], span.x1, span.y1, span.x2, span.y2);
+				todo.push(new Pending(starts[q], starts[q+1], 4*node+q-1, region[0], region[1], region[2], region[3]));
+			}
+		}
+	}
+
+	/**
+	 * Finds where, among ids[from] through ids[to-1], is the point closest to their median x and y
+	 * @param scratch	space for copying coords into
+	 * @return			index into ids of the chosen point
+	 */
+	private static int medianPosition(int[] ids, double[] xs, double[] ys, int from, int to, double[] scratch) {
+		int m = to-from;
+		for (int k = 0; k < m; k++) scratch[k] = xs[ids[from+k]];
+		double mx = PointQuadtree.select(scratch, m, m/2);
+		for (int k = 0; k < m; k++) scratch[k] = ys[ids[from+k]];
+		double my = PointQuadtree.select(scratch, m, m/2);
+
+		int best = from;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (int k = from; k < to; k++) {
+			double dx = xs[ids[k]]-mx, dy = ys[ids[k]]-my;
+			if (dx*dx + dy*dy < bestDist) {
+				best = k;
+				bestDist = dx*dx + dy*dy;
+			}
+		}
+		return best;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * All the points, parents before children, quadrants in order
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<E>(n);
+		for (int node = 0; node < n; node++) list.add(elements.get(element[node]));
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<E>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		IntStack stack = stacks.get();
+		int base = stack.size();
+		try {
+			stack.push(0);
+			while (stack.size() > base) {
+				int node = stack.pop();
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1[node], y1[node], x2[node], y2[node])) continue;
+				if (Geometry.pointInCircle(px[node], py[node], cx, cy, cr)) sink.accept(elements.get(element[node]));
+				pushChildren(stack, node);
+			}
+		}
+		finally {
+			// in case the sink threw
+			stack.truncate(base);
+		}
+	}
+
+	@Override
+	public boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		IntStack stack = stacks.get();
+		int base = stack.size();
+		try {
+			stack.push(0);
+			while (stack.size() > base) {
+				int node = stack.pop();
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1[node], y1[node], x2[node], y2[node])) continue;
+				if (Geometry.pointInCircle(px[node], py[node], cx, cy, cr) && test.test(elements.get(element[node]))) return true;
+				pushChildren(stack, node);
+			}
+			return false;
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch, with one circle query per node, reporting
+	 * a pair only from the lower-numbered of its two nodes, so that each is reported exactly once
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	@Override
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		double[] r = new double[n];
+		double maxR = 0;
+		for (int node = 0; node < n; node++) {
+			r[node] = radius.applyAsDouble(elements.get(element[node]));
+			maxR = Math.max(maxR, r[node]);
+		}
+
+		IntStack stack = stacks.get();
+		int base = stack.size();
+		try {
+			for (int node = 0; node < n; node++) {
+				double cx = px[node], cy = py[node], cr = r[node] + maxR;
+				stack.push(0);
+				while (stack.size() > base) {
+					int other = stack.pop();
+					if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1[other], y1[other], x2[other], y2[other])) continue;
+					if (other > node && Geometry.pointInCircle(px[other], py[other], cx, cy, r[node] + r[other])) {
+						pairs.accept(elements.get(element[node]), elements.get(element[other]));
+					}
+					pushChildren(stack, other);
+				}
+			}
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Pushes the node's children, last quadrant first, so that they're popped in order 1-4
+	 */
+	private void pushChildren(IntStack stack, int node) {
+		for (int slot = 4*node+3; slot >= 4*node; slot--) {
+			if (children[slot] >= 0) stack.push(children[slot]);
+		}
+	}
+
+	/**
+	 * Explicit stack of node numbers, one per thread; like PointQuadtree's, a traversal only pops
+	 * down to where the stack was when it started
+	 */
+	private static class IntStack {
+		private int[] items = new int[64];
+		private int size = 0;
+
+		public int size() {
+			return size;
+		}
+
+		public void push(int item) {
+			if (size == items.length) items = Arrays.copyOf(items, size*2);
+			items[size++] = item;
+		}
+
+		public int pop() {
+			return items[--size];
+		}
+
+		public void truncate(int newSize) {
+			size = Math.min(size, newSize);
+		}
+	}
+}
@@ -0,0 +1,402 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A region (PR) quadtree: rather than each node anchoring one point, the points are kept in leaves,
+ * in arrays of up to a given capacity, and a leaf that overflows is split into four equal quadrants
+ * at its midpoint. So there are far fewer nodes than points, a query tests a leaf's points in one
+ * batch (Geometry.pointsInCircle), and the depth is bounded (by maxDepth, past which leaves just grow),
+ * however the points are clustered.
+ *
+ * Each point in a leaf also has a radius, and each node knows the largest radius in its subtree, so a
+ * search for touching circles only reaches as far into a region as that region's own circles do.
+ * Plain points have radius 0 until findAllPairsWithin gives them theirs; CircleQuadtree inserts circles.
+ *
+ * Like ArrayQuadtree, it holds where the points were when they were inserted; rebuild it after they move.
+ */
+public class BucketQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final int maxDepth = 24;		// no splitting deeper than this (e.g., for many points at one spot)
+
+	private final int capacity;					// most points a leaf holds before splitting
+	private final Node<E> root;
+	private final List<E> elements = new ArrayList<>();	// the points, by id (order of insertion)
+
+	/**
+	 * A region: either a leaf, holding points, or split into four children
+	 */
+	private static class Node<E> {
+		final double x1, y1, x2, y2;			// region
+		final int depth;
+		Node<E>[] children;						// quadrants 1-4 at 0-3, or null for a leaf
+		double maxR = 0;						// largest radius of any point in the subtree
+		int n = 0;								// number of points in the leaf
+		int[] ids;								// the leaf's points' ids
+		double[] xs, ys, rs;					// and coords and radii
+
+		Node(double x1, double y1, double x2, double y2, int depth, int capacity) {
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.depth = depth;
+			ids = new int[capacity];
+			xs = new double[capacity];
+			ys = new double[capacity];
+			rs = new double[capacity];
+		}
+
+		/**
+		 * Which quadrant of the region a position falls into: 1 upper right, 2 upper left,
+		 * 3 lower left, 4 lower right (points on a midline go right, or down)
+		 */
+		int findQuadrant(double x, double y) {
+			boolean right = x >= (x1+x2)/2, lower = y >= (y1+y2)/2;
+			if (right) return lower ? 4 : 1;
+			else return lower ? 3 : 2;
+		}
+
+		void add(int id, double x, double y, double r) {
+			if (n == ids.length) {
+				ids = Arrays.copyOf(ids, 2*n);
+				xs = Arrays.copyOf(xs, 2*n);
+				ys = Arrays.copyOf(ys, 2*n);
+				rs = Arrays.copyOf(rs, 2*n);
+			}
+			ids[n] = id; xs[n] = x; ys[n] = y; rs[n] = r;
+			n++;
+			maxR = Math.max(maxR, r);
+		}
+	}
+
+	/**
+	 * An empty tree over the region
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param capacity	most points a leaf holds before splitting
+	 */
+	public BucketQuadtree(double x1, double y1, double x2, double y2, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("leaf capacity must be at least 1");
+		this.capacity = capacity;
+		root = new Node<E>(x1, y1, x2, y2, 0, capacity);
+	}
+
+	/**
+	 * Builds a tree holding all the points
+	 * @param points	points to put in the tree (all within the region)
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param capacity	most points a leaf holds before splitting
+	 * @return			the tree
+	 */
+	public static <E extends Point2D> BucketQuadtree<E> build(List<E> points, double x1, double y1, double x2, double y2, int capacity) {
+		BucketQuadtree<E> tree = new BucketQuadtree<E>(x1, y1, x2, y2, capacity);
+		for (E p : points) tree.insert(p);
+		return tree;
+	}
+
+	/**
+	 * Inserts the point into the leaf for its position, splitting the leaf if it's now too full.
+	 * The point has to lie within the tree's region, as findInCircle takes in a leaf lying inside
+	 * the circle without testing its points.
+	 * @param p2	the point, within the region
+	 */
+	public void insert(E p2) {
+		double x = p2.getX(), y = p2.getY();
+		if (!inRegion(x, y)) throw new IllegalArgumentException("point "+p2+" is outside the tree's region");
+		add(p2, x, y, 0);
+	}
+
+	/**
+	 * Whether the position is within the tree's region
+	 */
+	protected boolean inRegion(double x, double y) {
+		return Geometry.pointInRectangle(x, y, root.x1, root.y1, root.x2, root.y2);
+	}
+
+	/**
+	 * Puts the point into the leaf for the position (which the caller has checked is within the region)
+	 * with the radius, splitting the leaf if it's now too full, and growing the largest radius of each
+	 * region on the way down if need be
+	 * @param p2	the point
+	 * @param x		x coord it's kept (and found) at
+	 * @param y		y coord it's kept (and found) at
+	 * @param r		its radius
+	 * @return		its id
+	 */
+	protected int add(E p2, double x, double y, double r) {
+		int id = elements.size();
+		elements.add(p2);
+		Node<E> node = root;
+		while (node.children != null) {
+			node.maxR = Math.max(node.maxR, r);
+			node = node.children[node.findQuadrant(x, y)-1];
+		}
+		node.add(id, x, y, r);
+		if (node.n > capacity && node.depth < maxDepth) split(node);
+		return id;
+	}
+
+	/**
+	 * The point with the id
+	 */
+	protected E get(int id) {
+		return elements.get(id);
+	}
+
+	/**
+	 * Turns the leaf into four children, dividing its points among them (and splitting them further if
+	 * all the points went into one); its largest radius stays the same
+	 */
+	private void split(Node<E> leaf) {
+		double mx = (leaf.x1+leaf.x2)/2, my = (leaf.y1+leaf.y2)/2;
+		int d = leaf.depth+1;
+		@SuppressWarnings("unchecked")
+		Node<E>[] children = (Node<E>[]) new Node<?>[4];	// (Java can't make a Node<E>[] directly)
+		children[0] = new Node<E>(mx, leaf.y1, leaf.x2, my, d, capacity);
+		children[1] = new Node<E>(leaf.x1, leaf.y1, mx, my, d, capacity);
+		children[2] = new Node<E>(leaf.x1, my, mx, leaf.y2, d, capacity);
+		children[3] = new Node<E>(mx, my, leaf.x2, leaf.y2, d, capacity);
+		leaf.children = children;
+		for (int i = 0; i < leaf.n; i++) {
+			leaf.children[leaf.findQuadrant(leaf.xs[i], leaf.ys[i])-1].add(leaf.ids[i], leaf.xs[i], leaf.ys[i], leaf.rs[i]);
+		}
+		leaf.ids = null; leaf.xs = null; leaf.ys = null; leaf.rs = null;
+		leaf.n = 0;
+		for (Node<E> child : leaf.children) {
+			if (child.n > capacity && child.depth < maxDepth) split(child);
+		}
+	}
+
+	public int size() {
+		return elements.size();
+	}
+
+	/**
+	 * All the points, leaf by leaf
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<>(elements.size());
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(root);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			if (node.children != null) pushChildren(stack, node);
+			else for (int i = 0; i < node.n; i++) list.add(elements.get(node.ids[i]));
+		}
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point in the circle to the sink; leaves inside the circle are taken whole
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(root);
+			while (stack.size() > base) {
+				Node<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (node.children != null) {
+					pushChildren(stack, node);
+				} else if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+					for (int i = 0; i < node.n; i++) sink.accept(elements.get(node.ids[i]));
+				} else {
+					// the leaf's points, up to 64 at a time, and then just the ones that were in
+					for (int from = 0; from < node.n; from += 64) {
+						long in = Geometry.pointsInCircle(node.xs, node.ys, from, Math.min(node.n, from+64), cx, cy, cr);
+						for (; in != 0; in &= in-1) sink.accept(elements.get(node.ids[from + Long.numberOfTrailingZeros(in)]));
+					}
+				}
+			}
+		}
+		finally {
+			// in case the sink threw
+			stack.truncate(base);
+		}
+	}
+
+	@Override
+	public boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(root);
+			while (stack.size() > base) {
+				Node<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (node.children != null) {
+					pushChildren(stack, node);
+					continue;
+				}
+				for (int from = 0; from < node.n; from += 64) {
+					long in = Geometry.pointsInCircle(node.xs, node.ys, from, Math.min(node.n, from+64), cx, cy, cr);
+					for (; in != 0; in &= in-1) {
+						if (test.test(elements.get(node.ids[from + Long.numberOfTrailingZeros(in)]))) return true;
+					}
+				}
+			}
+			return false;
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch: gives each point its radius (and each region the
+	 * largest in it), then has each point look for the circles touching its own
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	@Override
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		int count = elements.size();
+		double[] xs = new double[count], ys = new double[count], r = new double[count];
+		for (int id = 0; id < count; id++) {
+			E p = elements.get(id);
+			xs[id] = p.getX(); ys[id] = p.getY();
+			r[id] = radius.applyAsDouble(p);
+		}
+
+		// parents before children, so going backwards sees each node after its children
+		List<Node<E>> nodes = new ArrayList<>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++) {
+			Node<E> node = nodes.get(i);
+			if (node.children != null) nodes.addAll(Arrays.asList(node.children));
+		}
+		for (int i = nodes.size()-1; i >= 0; i--) {
+			Node<E> node = nodes.get(i);
+			node.maxR = 0;
+			if (node.children != null) {
+				for (Node<E> child : node.children) node.maxR = Math.max(node.maxR, child.maxR);
+			}
+			for (int j = 0; j < node.n; j++) {
+				node.rs[j] = r[node.ids[j]];
+				node.maxR = Math.max(node.maxR, node.rs[j]);
+			}
+		}
+
+		pairsTouching(xs, ys, r, pairs);
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch with SpatialIndex's search, one findInCircle per point,
+	 * leaving the radii the tree holds as they are
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	protected void pairsByQuery(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		SpatialIndex.super.findAllPairsWithin(radius, pairs);
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch, with a search for the circles touching each point's,
+	 * reporting a pair only from the one of its two points inserted first, so that each is reported exactly once
+	 * @param cxs		each point's circle's center x, by id
+	 * @param cys		and center y
+	 * @param crs		and radius
+	 * @param pairs		called with each pair found
+	 */
+	protected void pairsTouching(double[] cxs, double[] cys, double[] crs, BiConsumer<? super E, ? super E> pairs) {
+		for (int id = 0; id < elements.size(); id++) {
+			int first = id;
+			E p = elements.get(id);
+			touching(cxs[id], cys[id], crs[id], other -> {
+				if (other > first) pairs.accept(p, elements.get(other));
+				return false;
+			});
+		}
+	}
+
+	/**
+	 * Hands the id of each point whose circle touches the given circle (is within the sum of the radii) to
+	 * the visitor, until it says to stop. A region is skipped unless it comes within the circle's radius
+	 * plus the region's largest radius.
+	 * @param cx		circle center x
+	 * @param cy		circle center y
+	 * @param cr		circle radius
+	 * @param visit		called with each id found; returns true to stop
+	 * @return			true if the visitor stopped it
+	 */
+	protected boolean touching(double cx, double cy, double cr, IntPredicate visit) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(root);
+			while (stack.size() > base) {
+				Node<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr + node.maxR, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (node.children != null) {
+					pushChildren(stack, node);
+					continue;
+				}
+				for (int from = 0; from < node.n; from += 64) {
+					long touching = Geometry.circlesTouching(node.xs, node.ys, node.rs, from, Math.min(node.n, from+64), cx, cy, cr);
+					for (; touching != 0; touching &= touching-1) {
+						if (visit.test(node.ids[from + Long.numberOfTrailingZeros(touching)])) return true;
+					}
+				}
+			}
+			return false;
+		}
+		finally {
+			// in case the visitor threw
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * The largest radius of any point in the tree
+	 */
+	protected double maxRadius() {
+		return root.maxR;
+	}
+
+	/**
+	 * How deep the deepest leaf is (the root being 0)
+	 */
+	public int depth() {
+		int deepest = 0;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(root);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			deepest = Math.max(deepest, node.depth);
+			if (node.children != null) pushChildren(stack, node);
+		}
+		return deepest;
+	}
+
+	/**
+	 * Pushes the node's children, last quadrant first, so that they're popped in order 1-4
+	 */
+	private static <E> void pushChildren(NodeStack stack, Node<E> node) {
+		for (int i = 3; i >= 0; i--) stack.push(node.children[i]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Node<E> pop(NodeStack stack) {
+		return (Node<E>)stack.pop();
+	}
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A region quadtree of circles rather than points: a BucketQuadtree whose points are each inserted with
+ * a radius of its own. Since each node knows the largest radius in its subtree, asking which circles
+ * touch a given one can prune a region by how far its own circles reach, rather than by how far the
+ * biggest circle anywhere reaches; with a few big blobs among many small ones, a small blob's query
+ * only has to reach far into the regions where big ones are.
+ *
+ * Like BucketQuadtree, it holds where the points were, and how big, when they were inserted; rebuild it
+ * after they move or grow. A point can also be inserted as a circle somewhere else, e.g., one around
+ * the whole path it took over a step, for finding blobs whose paths crossed.
+ */
+public class CircleQuadtree<E extends Point2D> extends BucketQuadtree<E> {
+	private double[] centerX = new double[16], centerY = new double[16], radii = new double[16];	// the points' circles, by id
+
+	/**
+	 * An empty tree over the region
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param capacity	most points a leaf holds before splitting
+	 */
+	public CircleQuadtree(double x1, double y1, double x2, double y2, int capacity) {
+		super(x1, y1, x2, y2, capacity);
+	}
+
+	/**
+	 * Builds a tree holding all the points, each with its radius
+	 * @param points	points to put in the tree (all within the region)
+	 * @param radius	radius of each point's circle
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param capacity	most points a leaf holds before splitting
+	 * @return			the tree
+	 */
+	public static <E extends Point2D> CircleQuadtree<E> build(List<E> points, ToDoubleFunction<? super E> radius,
+			double x1, double y1, double x2, double y2, int capacity) {
+		CircleQuadtree<E> tree = new CircleQuadtree<E>(x1, y1, x2, y2, capacity);
+		for (E p : points) tree.insert(p, radius.applyAsDouble(p));
+		return tree;
+	}
+
+	/**
+	 * Inserts the point with radius 0
+	 */
+	@Override
+	public void insert(E p2) {
+		insert(p2, 0);
+	}
+
+	/**
+	 * Inserts the point, with its radius, into the leaf for its position
+	 * @param p2	the point, within the region
+	 * @param r		its radius
+	 */
+	public void insert(E p2, double r) {
+		insert(p2, p2.getX(), p2.getY(), r);
+	}
+
+	/**
+	 * Inserts the point as a circle somewhere other than where the point is (e.g., a circle around
+	 * the path it took over a step); queries then find it by that circle.
+	 * The circle's center has to lie within the tree's region, as the queries prune and take in
+	 * whole regions by where the centers in them can be.
+	 * @param p2	the point
+	 * @param x		center x of its circle, within the region
+	 * @param y		center y of its circle, within the region
+	 * @param r		radius of its circle
+	 */
+	public void insert(E p2, double x, double y, double r) {
+		if (r < 0) throw new IllegalArgumentException("radius must not be negative");
+		if (!inRegion(x, y)) throw new IllegalArgumentException("circle for "+p2+" is centered outside the tree's region");
+		int id = add(p2, x, y, r);
+		if (id == radii.length) {
+			centerX = Arrays.copyOf(centerX, 2*id);
+			centerY = Arrays.copyOf(centerY, 2*id);
+			radii = Arrays.copyOf(radii, 2*id);
+		}
+		centerX[id] = x; centerY[id] = y; radii[id] = r;
+	}
+
+	/**
+	 * The largest radius of any point in the tree
+	 */
+	public double getMaxRadius() {
+		return maxRadius();
+	}
+
+	public List<E> findTouching(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findTouching(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point whose circle touches the given circle (is within the sum of the radii) to the sink.
+	 * A region is skipped unless it comes within the circle's radius plus the region's largest radius.
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point whose circle touches it
+	 */
+	public void findTouching(double cx, double cy, double cr, Consumer<? super E> sink) {
+		touching(cx, cy, cr, id -> {
+			sink.accept(get(id));
+			return false;
+		});
+	}
+
+	/**
+	 * Whether any point whose circle touches the given circle passes the test; stops at the first one
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param test	what the point has to pass (e.g., not being the one at the center)
+	 * @return		true if some point touching the circle passes
+	 */
+	public boolean anyTouching(double cx, double cy, double cr, Predicate<? super E> test) {
+		return touching(cx, cy, cr, id -> test.test(get(id)));
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch, as findAllTouching does.
+	 * That uses the radii the points were inserted with, so if the given radii aren't the same
+	 * (e.g., the points have grown since), it falls back to SpatialIndex's search with the given ones.
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	@Override
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		for (int id = 0; id < size(); id++) {
+			if (radius.applyAsDouble(get(id)) != radii[id]) {
+				pairsByQuery(radius, pairs);
+				return;
+			}
+		}
+		findAllTouching(pairs);
+	}
+
+	/**
+	 * Finds every pair of points whose circles, as inserted, touch, reporting each exactly once
+	 * @param pairs		called with each pair found
+	 */
+	public void findAllTouching(BiConsumer<? super E, ? super E> pairs) {
+		pairsTouching(centerX, centerY, radii, pairs);
+	}
+}
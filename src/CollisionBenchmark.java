@@ -0,0 +1,181 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs a CollisionWorld with no display, and reports how fast it steps:
+ * steps per second, median and 99th percentile step times, and how much memory is allocated.
+ *
+ * Usage: java CollisionBenchmark [blobs] [steps] [indexes] [parallel: true/false] [width] [height] [mixed: true/false]
+ * [swept: true/false] [moving] [incremental: true/false] (defaults: 10000 blobs, 500 steps, index 1, sequential, 800x600,
+ * all the same size, not swept, all moving, incremental).
+ * The blobs are Bouncers at random positions; mixed makes one in a hundred of them ten times as big, and swept
+ * finds collisions along their paths over each step (CollisionWorld.setSwept). Moving is the fraction of them that
+ * move at all (the rest are plain Blobs, staying put); incremental false has index 1 rebuild its tree every step
+ * rather than relocating the blobs that moved (CollisionWorld.setIncremental).
+ * Indexes are any of CollisionWorld's index types, run one after another to compare them (e.g., "14"), or "all".
+ *
+ * Or: java CollisionBenchmark check [blobs] [steps] (defaults: 1000 blobs, 100 steps), which cross-checks that every
+ * index, sequential and parallel, finds the same colliders as testing every pair, including off the edge of the world,
+ * both with all the blobs moving and with most of them staying put.
+ */
+public class CollisionBenchmark {
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("check")) {
+			int numBlobs = args.length > 1 ? Integer.parseInt(args[1]) : 1000, numSteps = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+			check(numBlobs, numSteps, 1, 800, 600);
+			check(numBlobs, numSteps, 0.1, 800, 600);
+			return;
+		}
+		int numBlobs = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int numSteps = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		String indexTypes = args.length > 2 ? args[2] : "1";
+		boolean parallel = args.length > 3 && Boolean.parseBoolean(args[3]);
+		int width = args.length > 4 ? Integer.parseInt(args[4]) : 800;
+		int height = args.length > 5 ? Integer.parseInt(args[5]) : 600;
+		boolean mixed = args.length > 6 && Boolean.parseBoolean(args[6]);
+		boolean swept = args.length > 7 && Boolean.parseBoolean(args[7]);
+		double moving = args.length > 8 ? Double.parseDouble(args[8]) : 1;
+		boolean incremental = args.length <= 9 || Boolean.parseBoolean(args[9]);
+
+		Geometry.setCounting(false);	// nobody's reading the counts
+		if (indexTypes.equals("all")) indexTypes = "1234567";
+		for (char indexType : indexTypes.toCharArray()) {
+			run(numBlobs, numSteps, indexType, parallel, width, height, mixed, swept, moving, incremental);
+		}
+	}
+
+	/**
+	 * Steps a world of Bouncers and prints how it went
+	 * @param numBlobs		how many blobs
+	 * @param numSteps		how many steps to time
+	 * @param indexType		the world's index for finding colliders
+	 * @param parallel		whether to find colliders in parallel
+	 * @param width			width of the universe
+	 * @param height		height of the universe
+	 * @param mixed			whether to make some of the blobs much bigger than the rest
+	 * @param swept			whether to look for collisions along the blobs' paths
+	 * @param moving		fraction of the blobs that move
+	 * @param incremental	whether index 1 keeps its tree across steps
+	 */
+	private static void run(int numBlobs, int numSteps, char indexType, boolean parallel, int width, int height, boolean mixed, boolean swept,
+			double moving, boolean incremental) {
+		CollisionWorld world = new CollisionWorld(width, height);
+		world.setIndexType(indexType);
+		world.setParallel(parallel);
+		world.setSwept(swept);
+		world.setIncremental(incremental);
+		Random random = new Random(0);
+		for (int i = 0; i < numBlobs; i++) {
+			double x = width*random.nextDouble(), y = height*random.nextDouble();
+			Blob b = random.nextDouble() < moving ? new Bouncer(x, y, width, height) : new Blob(x, y);
+			if (mixed && i % 100 == 0) b.setR(10*b.getR());
+			world.add(b);
+		}
+		System.out.println(numBlobs+" blobs in "+width+"x"+height+", index "+indexType+(parallel ? ", parallel" : "")+(mixed ? ", mixed sizes" : "")+(swept ? ", swept" : "")
+				+(moving < 1 ? ", "+moving+" moving" : "")+(incremental ? "" : ", rebuilt every step")+", "+numSteps+" steps");
+
+		// warm up (and let the tree settle), without counting it
+		for (int i = 0; i < Math.min(50, numSteps); i++) world.step();
+
+		long[] times = new long[numSteps];
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long colliders = 0;
+		for (int i = 0; i < numSteps; i++) {
+			long stepStart = System.nanoTime();
+			world.step();
+			times[i] = System.nanoTime() - stepStart;
+			colliders += world.getColliders() == null ? 0 : world.getColliders().size();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		Arrays.sort(times);
+		System.out.printf("steps/sec: %.1f%n", numSteps / seconds);
+		System.out.printf("step time: p50 %.2f ms, p99 %.2f ms%n", times[numSteps/2] / 1e6, times[Math.min(numSteps-1, numSteps*99/100)] / 1e6);
+		System.out.printf("allocation: %.1f MB/sec, %.1f KB/step%n", allocated / seconds / (1<<20), (double)allocated / numSteps / 1024);
+		System.out.printf("average colliders per step: %.1f%n", (double)colliders / numSteps);
+	}
+
+	/**
+	 * Steps a world of Bouncers and Wanderers (the first two overlapping, off the left edge of the world, where
+	 * they'll stay for a while), and of Blobs that stay put, and after each step has a world per index type and mode, holding the same blobs,
+	 * find the colliders; prints any that differ from testing every pair
+	 * @param numBlobs		how many blobs, besides the two off the edge
+	 * @param numSteps		how many steps to check
+	 * @param moving		fraction of the blobs (besides the two) that move
+	 * @param width			width of the universe
+	 * @param height		height of the universe
+	 */
+	private static void check(int numBlobs, int numSteps, double moving, int width, int height) {
+		Random random = new Random(0);
+		List<Blob> blobs = new ArrayList<>();
+		blobs.add(new Wanderer(-200, 300));
+		blobs.add(new Wanderer(-195, 300));
+		for (int i = 0; i < numBlobs; i++) {
+			double x = width*random.nextDouble(), y = height*random.nextDouble();
+			if (random.nextDouble() >= moving) blobs.add(new Blob(x, y));
+			else blobs.add(i % 10 == 0 ? new Wanderer(x, y) : new Bouncer(x, y, width, height));
+		}
+
+		// one world to move the blobs, and one per index and mode to look for colliders among them
+		CollisionWorld mover = new CollisionWorld(width, height);
+		for (Blob b: blobs) mover.add(b);
+		Map<String, CollisionWorld> worlds = new LinkedHashMap<>();
+		for (char indexType : "1234567".toCharArray()) {
+			for (boolean parallel : new boolean[] { false, true }) {
+				CollisionWorld world = new CollisionWorld(width, height);
+				world.setIndexType(indexType);
+				world.setParallel(parallel);
+				for (Blob b: blobs) world.add(b);
+				worlds.put(indexType+(parallel ? " parallel" : ""), world);
+			}
+		}
+
+		int mismatches = 0;
+		for (int step = 0; step < numSteps; step++) {
+			mover.step();
+			Set<Blob> expected = new HashSet<>();
+			for (int i = 0; i < blobs.size(); i++) {
+				Blob b1 = blobs.get(i);
+				for (int j = i+1; j < blobs.size(); j++) {
+					Blob b2 = blobs.get(j);
+					if (Geometry.pointInCircle(b1.getX(), b1.getY(), b2.getX(), b2.getY(), b1.getR() + b2.getR())) {
+						expected.add(b1);
+						expected.add(b2);
+					}
+				}
+			}
+			for (Map.Entry<String, CollisionWorld> entry : worlds.entrySet()) {
+				entry.getValue().findColliders();
+				Set<Blob> found = entry.getValue().getColliders();
+				if (!expected.equals(found)) {
+					System.out.println("step "+step+", index "+entry.getKey()+": "+found.size()+" colliders, expected "+expected.size());
+					mismatches++;
+				}
+			}
+		}
+		System.out.println(worlds.size()+" indexes and modes, "+numSteps+" steps, "+moving+" moving: "+(mismatches == 0 ? "all agree" : mismatches+" mismatches"));
+	}
+
+	/**
+	 * Bytes allocated so far by all live threads (including the ForkJoinPool's workers),
+	 * where the JVM can tell (-1 if it can't)
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		long total = 0;
+		for (long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) total += bytes;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,408 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The blobs, and collision detection among them, without any display:
+ * CollisionGUI draws one of these, and CollisionBenchmark runs one headless.
+ * Not thread-safe; Simulation runs it on a thread of its own.
+ */
+public class CollisionWorld {
+	private static final int chunkSize = 1024;			// blobs stepped together by one worker
+	private static final int collisionRadius = 0;
+	private static final int bucketCapacity = 8;		// leaf size for the bucket quadtree
+	private static final double maxMovedFraction = 0.25;	// more of the blobs than this moving in a step, and rebuilding the tree is quicker than relocating them
+
+	private final int width, height;					// size of the universe
+	private final List<Blob> blobs = new ArrayList<>();	// all the blobs
+	private Set<Blob> colliders;						// the blobs who collided at this step
+	private PointQuadtree<Blob> tree;					// kept across steps, updated as the blobs move (null to rebuild)
+	private int builtDepth;								// how deep the tree was when last rebuilt
+	private SpatialHashGrid<Blob> grid;					// kept across steps, rebuilt in place (null to make a new one)
+	private SweepAndPrune<Blob> sweep;					// kept across steps, re-sorted as the blobs move (null to start over)
+	private MortonQuadtree<Blob> morton;				// kept across steps, rebuilt in place
+	private Map<Blob, double[]> placed = new HashMap<>();	// where each blob was when last placed or moved in the tree
+	private Map<Blob, double[]> previous = new HashMap<>();	// where each blob was before this step, when looking along paths
+	private char collisionHandler = 'c';				// when there's a collision, 'c'olor them, or 'd'estroy them
+	private char indexType = '1';						// index for finding colliders: '1' PointQuadtree, '2' ArrayQuadtree, '3' BucketQuadtree, '4' SpatialHashGrid, '5' SweepAndPrune, '6' MortonQuadtree, '7' CircleQuadtree
+	private boolean parallel = false;					// whether to look for colliders on all cores
+	private boolean swept = false;						// whether blobs collide if their paths crossed during the step, not just if they touch at its end
+	private boolean incremental = true;					// whether to keep the tree across steps when few blobs move, rather than rebuilding it every step
+
+	/**
+	 * @param width		width of the universe
+	 * @param height	height of the universe
+	 */
+	public CollisionWorld(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * The blobs; change them through add and step rather than directly
+	 */
+	public List<Blob> getBlobs() {
+		return blobs;
+	}
+
+	/**
+	 * The blobs who collided at the last step (null if none have been looked for, or in d mode)
+	 */
+	public Set<Blob> getColliders() {
+		return colliders;
+	}
+
+	public void setCollisionHandler(char collisionHandler) {
+		this.collisionHandler = collisionHandler;
+	}
+
+	/**
+	 * Chooses the index used to find colliders: '1' PointQuadtree, '2' ArrayQuadtree, '3' BucketQuadtree, '4' SpatialHashGrid,
+	 * '5' SweepAndPrune (which only finds pairs, so always runs sequentially), '6' MortonQuadtree,
+	 * '7' CircleQuadtree (which knows each blob's size, so mixed sizes don't make every query reach as far as the biggest)
+	 */
+	public void setIndexType(char indexType) {
+		this.indexType = indexType;
+		// not kept up to date while another index is in use
+		tree = null;
+		sweep = null;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Chooses whether index '1' keeps its tree across steps, relocating the blobs that moved (when only a few of them
+	 * have; otherwise it's rebuilt anyway), or rebuilds it from scratch every step
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		if (!incremental) tree = null;
+	}
+
+	/**
+	 * Chooses whether blobs collide if they touched at any point during the step (moving in straight lines
+	 * from where they were to where they are), so that fast ones can't pass through each other between steps.
+	 * Uses a CircleQuadtree of the blobs' paths, whatever the index type.
+	 */
+	public void setSwept(boolean swept) {
+		this.swept = swept;
+		if (!swept) previous.clear();
+	}
+
+	/**
+	 * Adds the blob to the world
+	 * @param b
+	 */
+	public void add(Blob b) {
+		blobs.add(b);
+		// no need to rebuild the tree for a new blob; just put it in, if it's within the tree's region
+		if (tree != null) {
+			if (inTree(b.getX(), b.getY())) {
+				tree.insert(b);
+				placed.put(b, new double[] { b.getX(), b.getY() });
+			}
+			else tree = null;
+		}
+		if (sweep != null) sweep.add(b);
+	}
+
+	/**
+	 * Moves all the blobs and checks for collisions (in d mode, removing the colliders)
+	 * @return	the blobs that collided
+	 */
+	public Set<Blob> step() {
+		if (swept) {
+			for (Blob b: blobs) {
+				double[] xy = previous.computeIfAbsent(b, k -> new double[2]);
+				xy[0] = b.getX(); xy[1] = b.getY();
+			}
+		}
+		stepAll();
+		if (blobs.isEmpty()) return null;
+
+		findColliders();
+		Set<Blob> collided = colliders;
+		//if in d mode, remove all blobs in that colliders group
+		if (collisionHandler=='d') {
+			removeBlobs(colliders);
+			colliders = null;
+		}
+		return collided;
+	}
+
+	/**
+	 * Steps all the blobs, a chunk at a time on the common ForkJoinPool's workers.
+	 * Each blob only changes itself, so the chunks don't need to coordinate.
+	 */
+	private void stepAll() {
+		int n = blobs.size();
+		if (n <= chunkSize) {
+			for (Blob b : blobs) b.step();
+			return;
+		}
+		IntStream.range(0, (n + chunkSize - 1) / chunkSize).parallel().forEach(chunk -> {
+			int end = Math.min(n, (chunk+1) * chunkSize);
+			for (int i = chunk * chunkSize; i < end; i++) blobs.get(i).step();
+		});
+	}
+
+	/**
+	 * Sets colliders to include all blobs in contact with another blob
+	 */
+	public void findColliders() {
+		// Find every pair of touching blobs in one go; a set holds each collided blob once,
+		// even if it touched several others
+		Set<Blob> collided = new HashSet<>();
+		BiConsumer<Blob, Blob> collide = (b1, b2) -> {
+			collided.add(b1);
+			collided.add(b2);
+		};
+
+		if (swept) {
+			colliders = findSweptColliders();
+			return;
+		}
+
+		if (indexType == '5') {
+			if (sweep == null) sweep = new SweepAndPrune<>(blobs);
+			sweep.findAllPairsWithin(CollisionWorld::collisionRadius, collide);
+			colliders = collided;
+			return;
+		}
+
+		SpatialIndex<Blob> index;
+		if (indexType == '2') {
+			// the array-based tree is cheap to build from scratch each step
+			double[] region = region();
+			index = ArrayQuadtree.build(blobs, region[0], region[1], region[2], region[3]);
+		} else if (indexType == '3') {
+			// so is the bucket tree, with its handful of nodes per leaf's worth of blobs
+			double[] region = region();
+			index = BucketQuadtree.build(blobs, region[0], region[1], region[2], region[3], bucketCapacity);
+		} else if (indexType == '4') {
+			updateGrid();
+			index = grid;
+		} else if (indexType == '6') {
+			// re-sorted from scratch each step, into the same arrays
+			if (morton == null) morton = new MortonQuadtree<>();
+			morton.rebuild(blobs);
+			index = morton;
+		} else if (indexType == '7') {
+			double[] region = region();
+			CircleQuadtree<Blob> circles = CircleQuadtree.build(blobs, CollisionWorld::collisionRadius, region[0], region[1], region[2], region[3], bucketCapacity);
+			if (parallel) {
+				// it can ask directly whether a blob touches any other, without reaching as far as the biggest
+				colliders = blobs.parallelStream()
+						.filter(b -> circles.anyTouching(b.getX(), b.getY(), collisionRadius(b), other -> other != b))
+						.collect(Collectors.toSet());
+				return;
+			}
+			index = circles;
+		} else {
+			updateTree();
+			index = tree;
+		}
+
+		if (parallel) {
+			colliders = findCollidersParallel(index);
+			return;
+		}
+
+		index.findAllPairsWithin(CollisionWorld::collisionRadius, collide);
+		colliders = collided;
+	}
+
+	/**
+	 * Finds the same colliders as the pairwise search, but asks about each blob separately
+	 * (whether it touches anybody else), so the blobs can be split up across cores.
+	 * Each thread collects its own colliders, and those sets are merged at the end.
+	 * @param index		holds all the blobs
+	 * @return			the blobs in contact with another blob
+	 */
+	private Set<Blob> findCollidersParallel(SpatialIndex<Blob> index) {
+		double maxR = 0;
+		for (Blob b: blobs) maxR = Math.max(maxR, collisionRadius(b));
+		double reach = maxR;
+
+		return blobs.parallelStream()
+				.filter(b -> {
+					double r = collisionRadius(b);
+					return index.anyInCircle(b.getX(), b.getY(), r + reach, other -> other != b
+							&& Geometry.pointInCircle(other.getX(), other.getY(), b.getX(), b.getY(), r + collisionRadius(other)));
+				})
+				.collect(Collectors.toSet());
+	}
+
+	/**
+	 * Finds the blobs that touched another at some point during the step. Each blob's path, from where it was
+	 * to where it is, fits in a circle around the path's midpoint, reaching half the path's length plus the blob's
+	 * collision radius; a CircleQuadtree of those finds the pairs whose paths came close, as fast blobs have bigger
+	 * circles, and the time of impact says whether they actually touched on the way.
+	 * @return	the blobs in contact with another blob during the step
+	 */
+	private Set<Blob> findSweptColliders() {
+		int n = blobs.size();
+		double[] cx = new double[n], cy = new double[n], cr = new double[n];	// each blob's path's circle
+		double x1 = 0, y1 = 0, x2 = width, y2 = height;							// the world, stretched to take in all the paths' midpoints
+		for (int i = 0; i < n; i++) {
+			Blob b = blobs.get(i);
+			double[] from = previous.get(b);
+			double x0 = from == null ? b.getX() : from[0], y0 = from == null ? b.getY() : from[1];
+			double length = Math.sqrt((b.getX()-x0)*(b.getX()-x0) + (b.getY()-y0)*(b.getY()-y0));
+			cx[i] = (x0+b.getX())/2;
+			cy[i] = (y0+b.getY())/2;
+			cr[i] = collisionRadius(b) + length/2;
+			x1 = Math.min(x1, cx[i]); y1 = Math.min(y1, cy[i]);
+			x2 = Math.max(x2, cx[i]); y2 = Math.max(y2, cy[i]);
+		}
+		CircleQuadtree<Blob> paths = new CircleQuadtree<>(x1, y1, x2, y2, bucketCapacity);
+		for (int i = 0; i < n; i++) paths.insert(blobs.get(i), cx[i], cy[i], cr[i]);
+
+		if (parallel) {
+			return IntStream.range(0, n).parallel()
+					.filter(i -> paths.anyTouching(cx[i], cy[i], cr[i], other -> other != blobs.get(i) && pathsTouch(blobs.get(i), other)))
+					.mapToObj(blobs::get)
+					.collect(Collectors.toSet());
+		}
+
+		Set<Blob> collided = new HashSet<>();
+		paths.findAllTouching((b1, b2) -> {
+			if (pathsTouch(b1, b2)) {
+				collided.add(b1);
+				collided.add(b2);
+			}
+		});
+		return collided;
+	}
+
+	/**
+	 * Whether the two blobs touched at some point as they moved, in straight lines, over the step
+	 */
+	private boolean pathsTouch(Blob b1, Blob b2) {
+		double[] from1 = previous.get(b1), from2 = previous.get(b2);
+		double x1 = from1 == null ? b1.getX() : from1[0], y1 = from1 == null ? b1.getY() : from1[1];
+		double x2 = from2 == null ? b2.getX() : from2[0], y2 = from2 == null ? b2.getY() : from2[1];
+		return Geometry.timeOfImpact(x1, y1, b1.getX(), b1.getY(), x2, y2, b2.getX(), b2.getY(),
+				collisionRadius(b1) + collisionRadius(b2)) >= 0;
+	}
+
+	/**
+	 * How close to a blob another one has to come to collide with it: two blobs collide
+	 * when they're within the sum of these
+	 * @param b		the blob
+	 */
+	private static double collisionRadius(Blob b) {
+		return b.getR() + collisionRadius / 2.0;
+	}
+
+	/**
+	 * The region for a tree of the blobs: the world, stretched to take in any blobs that have wandered out of it
+	 * (the trees only hold points within their regions, and prune their searches by them)
+	 * @return	{x1, y1, x2, y2}
+	 */
+	private double[] region() {
+		double x1 = 0, y1 = 0, x2 = width, y2 = height;
+		for (Blob b: blobs) {
+			x1 = Math.min(x1, b.getX()); y1 = Math.min(y1, b.getY());
+			x2 = Math.max(x2, b.getX()); y2 = Math.max(y2, b.getY());
+		}
+		return new double[] { x1, y1, x2, y2 };
+	}
+
+	/**
+	 * Whether the point is within the (incrementally updated) tree's region
+	 */
+	private boolean inTree(double x, double y) {
+		return Geometry.pointInRectangle(x, y, tree.getX1(), tree.getY1(), tree.getX2(), tree.getY2());
+	}
+
+	/**
+	 * Brings the tree up to date with where the blobs have moved since the last step.
+	 * Only blobs that have moved get relocated (and only if they've left their node's region), which beats
+	 * rebuilding as long as few of them have moved; so the tree is rebuilt from all the blobs if many have, or if
+	 * the tree has grown twice as deep as when it was built. It's also rebuilt if a blob can't be relocated; the
+	 * tree's region stays put, so a blob that has left it (e.g., wandered out of the world) can't be, and the
+	 * rebuild stretches the region to take all the blobs in.
+	 */
+	private void updateTree() {
+		if (incremental && tree != null && placed.size() == blobs.size()) {
+			List<Blob> moved = new ArrayList<>();
+			for (Blob b: blobs) {
+				double[] xy = placed.get(b);
+				if (xy == null) {
+					moved = null;
+					break;
+				}
+				if (xy[0] != b.getX() || xy[1] != b.getY()) moved.add(b);
+			}
+			if (moved != null && moved.size() <= maxMovedFraction * blobs.size()) {
+				boolean ok = true;
+				for (Blob b: moved) {
+					double[] xy = placed.get(b);
+					if (!tree.move(b, xy[0], xy[1])) {
+						ok = false;
+						break;
+					}
+					xy[0] = b.getX(); xy[1] = b.getY();
+				}
+				if (ok && tree.depth() <= 2 * builtDepth) return;
+			}
+		}
+
+		// Fall back to creating the tree based on all blobs, balanced whatever their order
+		double[] region = region();
+		tree = PointQuadtree.build(blobs, region[0], region[1], region[2], region[3], true);
+		builtDepth = tree.depth();
+		placed.clear();
+		for (Blob b: blobs) {
+			placed.put(b, new double[] { b.getX(), b.getY() });
+		}
+	}
+
+	/**
+	 * Refills the grid with where the blobs are now, making a new one only when the cells need to be
+	 * a different size (they're the diameter of the biggest blob's collision circle)
+	 */
+	private void updateGrid() {
+		double maxR = 0;
+		for (Blob b: blobs) maxR = Math.max(maxR, collisionRadius(b));
+		double cellSize = Math.max(1, 2*maxR);
+		if (grid == null || grid.getCellWidth() > cellSize || grid.getCellWidth() < cellSize/2) {
+			grid = new SpatialHashGrid<>(0, 0, width, height, cellSize);
+		}
+		grid.rebuild(blobs);
+	}
+
+	/**
+	 * Takes the blobs out of the world, and out of the tree
+	 * @param gone	blobs to remove
+	 */
+	private void removeBlobs(Collection<Blob> gone) {
+		blobs.removeAll(gone);
+		if (sweep != null) sweep.removeAll(gone);
+		for (Blob b: gone) {
+			previous.remove(b);
+			double[] xy = placed.remove(b);
+			// the tree can't give up its last blob, so just drop it then
+			if (tree != null && (xy == null || !tree.remove(b, xy[0], xy[1]))) tree = null;
+		}
+		if (blobs.isEmpty()) tree = null;
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A point quadtree that several threads can insert into while others query it, without locks.
+ * Splits the same way as PointQuadtree, but a node never changes once it's made, except for its
+ * child slots, which only ever go from empty to a new node, by compare-and-set: an insert that loses
+ * the race for a slot just carries on down into the node that won. So a query sees each node either
+ * whole or not at all, and never blocks (it sees the points inserted before it reached their slots,
+ * and maybe some inserted while it was running).
+ *
+ * Insert-only: points can't be removed or moved, and a point's position is taken when it's inserted.
+ */
+public class ConcurrentPointQuadtree<E extends Point2D> implements SpatialIndex<E> {
+
+	private final double x1, y1, x2, y2;				// region of the whole tree
+	private final AtomicReference<Node<E>> root = new AtomicReference<>();	// null until the first insert
+	private final LongAdder count = new LongAdder();	// points inserted so far
+
+	/**
+	 * One point, and the region it splits; all final, apart from the children
+	 */
+	private static class Node<E> {
+		final E point;
+		final double px, py;					// where the point was when inserted; splits the children
+		final double x1, y1, x2, y2;			// region
+		final AtomicReferenceArray<Node<E>> children = new AtomicReferenceArray<>(4);	// quadrants 1-4 at 0-3
+
+		Node(E point, double px, double py, double x1, double y1, double x2, double y2) {
+			this.point = point;
+			this.px = px; this.py = py;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		}
+
+		/**
+		 * A node for the point, with the region for the given quadrant (as in PointQuadtree)
+		 */
+		Node<E> child(int quadrant, E p, double x, double y) {
+			double[] region = PointQuadtree.childRegion(quadrant, px, py, x1, y1, x2, y2);
+			return new Node<E>(p, x, y, region[0], region[1], region[2], region[3]);
+		}
+	}
+
+	/**
+	 * An empty tree over the region
+	 * @param x1	top left x coord
+	 * @param y1	top left y coord
+	 * @param x2	bottom right x coord
+	 * @param y2	bottom right y coord
+	 */
+	public ConcurrentPointQuadtree(double x1, double y1, double x2, double y2) {
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+	}
+
+	/**
+	 * Inserts the point; safe to call from any number of threads at once.
+	 * The point has to lie within the tree's region, as the queries take in a region lying inside
+	 * the circle without testing its points.
+	 * @param p2	the point, within the region
+	 */
+	public void insert(E p2) {
+		double x = p2.getX(), y = p2.getY();
+		if (!Geometry.pointInRectangle(x, y, x1, y1, x2, y2)) throw new IllegalArgumentException("point "+p2+" is outside the tree's region");
+		Node<E> node = root.get();
+		if (node == null) {
+			if (root.compareAndSet(null, new Node<E>(p2, x, y, x1, y1, x2, y2))) {
+				count.increment();
+				return;
+			}
+			node = root.get(); // somebody else got there first
+		}
+		while (true) {
+			int quadrant = PointQuadtree.findQuadrant(node.px, node.py, x, y);
+			Node<E> child = node.children.get(quadrant-1);
+			if (child == null) {
+				child = node.child(quadrant, p2, x, y);
+				if (node.children.compareAndSet(quadrant-1, null, child)) {
+					count.increment();
+					return;
+				}
+				// lost the race; carry on into the node that won
+				child = node.children.get(quadrant-1);
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * How many points have been inserted (those whose inserts have finished, at least)
+	 */
+	public int size() {
+		return count.intValue();
+	}
+
+	/**
+	 * All the points, parents before children, quadrants in order
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<>();
+		Node<E> top = root.get();
+		if (top == null) return list;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(top);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			list.add(node.point);
+			pushChildren(stack, node);
+		}
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point in the circle to the sink; like PointQuadtree's, takes regions inside the circle whole
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		Node<E> top = root.get();
+		if (top == null) return;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(top);
+			while (stack.size() > base) {
+				Node<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+					emitAll(stack, node, sink);
+					continue;
+				}
+				if (Geometry.pointInCircle(node.px, node.py, cx, cy, cr)) sink.accept(node.point);
+				pushChildren(stack, node);
+			}
+		}
+		finally {
+			// in case the sink threw
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Hands every point in the node's subtree to the sink, using the stack above where it is now
+	 */
+	private void emitAll(NodeStack stack, Node<E> top, Consumer<? super E> sink) {
+		int base = stack.size();
+		stack.push(top);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			sink.accept(node.point);
+			pushChildren(stack, node);
+		}
+	}
+
+	/**
+	 * Pushes the node's children (as they are now), last quadrant first, so that they're popped in order 1-4
+	 */
+	private static <E> void pushChildren(NodeStack stack, Node<E> node) {
+		for (int i = 3; i >= 0; i--) {
+			Node<E> child = node.children.get(i);
+			if (child != null) stack.push(child);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Node<E> pop(NodeStack stack) {
+		return (Node<E>)stack.pop();
+	}
+
+	/**
+	 * Stress test: writer threads insert while reader threads query, checking that what the readers see
+	 * makes sense as it goes (everything found is in the circle, and a circle never loses points),
+	 * and that the tree has exactly the inserted points at the end
+	 * @param args	[writers] [points per writer] [readers]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int perWriter = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int readers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int width = 800, height = 600;
+
+		ConcurrentPointQuadtree<Dot> tree = new ConcurrentPointQuadtree<>(0, 0, width, height);
+		List<List<Dot>> batches = new ArrayList<>();
+		Random random = new Random(0);
+		for (int w = 0; w < writers; w++) {
+			List<Dot> batch = new ArrayList<>();
+			for (int i = 0; i < perWriter; i++) batch.add(new Dot(width*random.nextDouble(), height*random.nextDouble()));
+			batches.add(batch);
+		}
+
+		AtomicBoolean writing = new AtomicBoolean(true);
+		LongAdder queries = new LongAdder();
+		List<String> problems = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for (int r = 0; r < readers; r++) {
+			threads.add(new Thread(() -> {
+				ThreadLocalRandom rand = ThreadLocalRandom.current();
+				// the same circle, asked about over and over, should never shrink
+				double fx = width*rand.nextDouble(), fy = height*rand.nextDouble();
+				int lastCount = 0;
+				while (writing.get()) {
+					double cx = width*rand.nextDouble(), cy = height*rand.nextDouble(), cr = 50*rand.nextDouble();
+					tree.findInCircle(cx, cy, cr, d -> {
+						if (!Geometry.pointInCircle(d.getX(), d.getY(), cx, cy, cr)) problems.add("found "+d+" outside ("+cx+","+cy+")@"+cr);
+					});
+					int c = tree.findInCircle(fx, fy, 40).size();
+					if (c < lastCount) problems.add("circle went from "+lastCount+" to "+c+" points");
+					lastCount = c;
+					queries.add(2);
+				}
+			}, "reader "+r));
+		}
+		List<Thread> writerThreads = new ArrayList<>();
+		for (List<Dot> batch : batches) {
+			writerThreads.add(new Thread(() -> {
+				for (Dot d : batch) tree.insert(d);
+			}));
+		}
+		threads.addAll(writerThreads);
+
+		long start = System.nanoTime();
+		for (Thread t : threads) t.start();
+		for (Thread t : writerThreads) t.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		writing.set(false);
+		for (Thread t : threads) t.join();
+		System.out.printf("%d writers inserted %d points in %.2f s, while %d readers ran %d queries%n",
+				writers, writers*perWriter, seconds, readers, queries.sum());
+
+		// every point, once each
+		if (tree.size() != writers*perWriter) problems.add("size "+tree.size()+", expected "+writers*perWriter);
+		Set<Dot> all = Collections.newSetFromMap(new IdentityHashMap<>());
+		all.addAll(tree.allPoints());
+		for (List<Dot> batch : batches) {
+			for (Dot d : batch) if (!all.contains(d)) problems.add("lost "+d);
+		}
+		if (all.size() != writers*perWriter) problems.add("allPoints has "+all.size()+" distinct");
+
+		// every point where it belongs
+		NodeStack stack = NodeStack.current();
+		stack.push(tree.root.get());
+		while (stack.size() > 0) {
+			Node<Dot> node = pop(stack);
+			if (node.px < node.x1 || node.px > node.x2 || node.py < node.y1 || node.py > node.y2) problems.add("misplaced "+node.point);
+			pushChildren(stack, node);
+		}
+
+		// and queries agree with brute force
+		for (int q = 0; q < 100; q++) {
+			double cx = width*random.nextDouble(), cy = height*random.nextDouble(), cr = 50*random.nextDouble();
+			int expected = 0;
+			for (List<Dot> batch : batches) {
+				for (Dot d : batch) if (Geometry.pointInCircle(d.getX(), d.getY(), cx, cy, cr)) expected++;
+			}
+			int found = tree.findInCircle(cx, cy, cr).size();
+			if (found != expected) problems.add("("+cx+","+cy+")@"+cr+": found "+found+", expected "+expected);
+		}
+
+		if (problems.isEmpty()) System.out.println("stress test passed!");
+		else for (String p : problems.subList(0, Math.min(20, problems.size()))) System.err.println(p);
+	}
+}
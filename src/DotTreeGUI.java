@@ -1,4 +1,5 @@
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.*;
@@ -19,9 +20,10 @@ public class DotTreeGUI extends DrawingGUI {
 			// to color different levels differently
 
 	private PointQuadtree<Dot> tree = null;			// holds the dots
-	private char mode = 'a';						// 'a': adding; 'q': querying with the mouse
+	private char mode = 'a';						// 'a': adding; 'q': querying with the mouse; 'n': picking the nearest
 	private int mouseX, mouseY;						// current mouse location, when querying
 	private int mouseRadius = 50;					// circle around mouse location, for querying
+	private int numNearest = 1;						// how many to pick, in nearest mode
 	private boolean trackMouse = false;				// if true, then print out where the mouse is as it moves
 	private List<Dot> found = null;					// who was found near mouse, when querying
 	
@@ -55,6 +57,9 @@ public class DotTreeGUI extends DrawingGUI {
 		} else if (mode == 'q') {
 			//if tree exists, call findInCircle for x, y, local radius var
 			if (tree != null) found = tree.findInCircle(x, y, mouseRadius);
+		} else if (mode == 'n') {
+			// pick the dots closest to the press, however far away they are
+			if (tree != null) found = tree.kNearest(x, y, numNearest);
 		} else {
 			System.out.println("clicked at "+x+","+y);
 		}
@@ -102,7 +107,7 @@ public class DotTreeGUI extends DrawingGUI {
 		tree.insert(new Dot(150,450)); // B
 		tree.insert(new Dot(250,550)); // C
 		int bad = 0;
-		bad += testFind(0,0,900,3,3,3);		// rect for all; circle for all; find all
+		bad += testFind(0,0,900,2,1,3);		// rect for A,B; circle for A; B's region is inside, so B, C taken whole; find all
 		bad += testFind(400,300,10,3,2,1);	// rect for all; circle for A,B; find A
 		bad += testFind(150,450,10,3,3,1);	// rect for all; circle for all; find B
 		bad += testFind(250,550,10,3,3,1);	// rect for all; circle for all; find C
@@ -134,8 +139,8 @@ public class DotTreeGUI extends DrawingGUI {
 		bad += testFind(150,450,10,6,3,1);// rect for A [D] [E] [B [C]] [K]; circle for A, B, C; find B
 		bad += testFind(500,125,10,8,3,1);	// rect for A [D [G F H]] [E] [B] [K]; circle for A, D, G; find G
 		bad += testFind(300,400,15,10,6,2);	// rect for A [D [G F H]] [E] [B [C]] [K [L]]; circle for A,D,E,B,K,L; find A,L
-		bad += testFind(495,225,50,10,6,3);	// rect for A [D [G F H [I [J]]]] [E] [B] [K]; circle for A,D,G,H,I,J; find H,I,J
-		bad += testFind(0,0,900,12,12,12);	// rect for all; circle for all; find all
+		bad += testFind(495,225,50,10,5,3);	// rect for A [D [G F H [I [J]]]] [E] [B] [K]; circle for A,D,G,H,I; J's region is inside; find H,I,J
+		bad += testFind(0,0,900,6,2,12);	// rect for A [D] [E] [B] [K [L]]; circle for A, K; the rest taken whole; find all
 		if (bad==0) System.out.println("test 1 passed!");
 	}
 
@@ -160,7 +165,7 @@ public class DotTreeGUI extends DrawingGUI {
 		bad += testFind(700, 100, 150, 6, 3, 1); // upper right, find C
 		bad += testFind(100, 500, 250, 7, 5, 2); // lower left, find D, H
 		bad += testFind(700, 500, 250, 7, 5, 2); // lower right, find E, I
-		bad += testFind(0, 0, 900, 9, 9, 9); // large circle from top-left; find all
+		bad += testFind(0, 0, 900, 6, 2, 9); // large circle from top-left; only A and E tested, B, C, D, I taken whole; find all
 
 		if (bad == 0) System.out.println("test 2 passed!");
 	}
@@ -190,15 +195,163 @@ public class DotTreeGUI extends DrawingGUI {
 		if (bad == 0) System.out.println("test 3 passed!");
 	}
 
+	/**
+	 * test tree 4 -- the diagonal from test 3, but bulk built, so it's balanced rather than a chain
+	 */
+	public void test4() {
+		found = null;
+
+		List<Dot> dots = new ArrayList<>();
+		dots.add(new Dot(100, 100)); // A
+		dots.add(new Dot(200, 200)); // B
+		dots.add(new Dot(300, 300)); // C
+		dots.add(new Dot(400, 400)); // D
+		dots.add(new Dot(500, 500)); // E
+		dots.add(new Dot(600, 590)); // F
+		tree = PointQuadtree.build(dots, 0, 0, 800, 600); // D [B [A] [C]] [F [E]]
+
+		int bad = 0;
+
+		// same queries as test 3; the chain is gone, so fewer regions get visited
+		bad += testFind(150, 150, 125, 5, 4, 2);      // rect for D [B [A] [C]] [F]; circle for D,B,A,C; find A, B
+		bad += testFind(250, 250, 175, 5, 4, 2);      // rect for D [B [A] [C]] [F]; circle for D,B,A,C; find B, C
+		bad += testFind(350, 350, 60, 5, 3, 0);       // rect for D [B [A] [C]] [F]; circle for D,B,C; find none
+		bad += testFind(600, 600, 150, 4, 3, 2);      // rect for D [B] [F [E]]; circle for D,F,E; find E, F
+		bad += testFind(600, 600, 75, 4, 3, 1);       // rect for D [B] [F [E]]; circle for D,F,E; find F
+		bad += testFind(410, 410, 140, 6, 5, 2);      // rect for all; circle for D,B,C,F,E; find D, E
+		bad += testFind(750, 550, 20, 4, 2, 0);       // rect for D [B] [F [E]]; circle for D,F; find none
+
+		if (bad == 0) System.out.println("test 4 passed!");
+	}
+
+	/**
+	 * test tree 5 -- a point outside the tree's region, which a query would otherwise take in along with
+	 * a whole region lying inside its circle or rectangle, so the tree turns it away
+	 */
+	public void test5() {
+		found = null;
+
+		List<Dot> dots = new ArrayList<>();
+		for (int y = 150; y <= 450; y += 150) {
+			for (int x = 100; x <= 700; x += 100) dots.add(new Dot(x, y));	// 21 within the region
+		}
+		Dot outside = new Dot(-300, 300);
+		int bad = 0;
+
+		List<Dot> all = new ArrayList<>(dots);
+		all.add(outside);
+		try {
+			PointQuadtree.build(all, 0, 0, 800, 600);
+			System.err.println("build took a point outside the region");
+			bad++;
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		tree = PointQuadtree.build(dots, 0, 0, 800, 600);
+		try {
+			tree.insert(outside);
+			System.err.println("insert took a point outside the region");
+			bad++;
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// a dot moving out of the region can't be relocated, nor can the root's dot be removed
+		// while one under it has moved out unannounced; either way the tree is left as it was
+		Dot moved = dots.get(0);
+		moved.setX(-50);
+		if (tree.move(moved, 100, 150)) {
+			System.err.println("moved a dot out of the region");
+			bad++;
+		}
+		if (tree.remove(tree.getPoint())) {
+			System.err.println("removed the root's dot, with a dot under it out of the region");
+			bad++;
+		}
+		moved.setX(100);
+
+		// the circle takes in the whole region, and the rectangle the region and the point outside it
+		bad += testCount("size", tree.size(), 21);
+		bad += testCount("findInCircle", tree.findInCircle(400, 300, 510).size(), 21);
+		bad += testCount("countInCircle", tree.countInCircle(400, 300, 510), 21);
+		bad += testCount("findInRectangle", tree.findInRectangle(-400, 0, 800, 600).size(), 21);
+		bad += testCount("countInRectangle", tree.countInRectangle(-400, 0, 800, 600), 21);
+		bad += testCount("countInRectangle", tree.countInRectangle(-400, 0, 150, 600), 3);	// x=100 column, not the dot outside
+
+		if (bad == 0) System.out.println("test 5 passed!");
+	}
+
+	/**
+	 * test tree 6 -- a pile of dots all at one spot, each of which goes into quadrant 4 of the one before,
+	 * making a chain as deep as the pile; as in test 4 with the diagonal, bulk building it (sequentially and
+	 * in parallel) and querying it mustn't overflow the stack
+	 */
+	public void test6() {
+		found = null;
+		int bad = 0;
+
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) dots.add(new Dot(5, 5));
+		dots.add(new Dot(400, 300));
+		for (boolean parallel : new boolean[] { false, true }) {
+			String which = parallel ? "parallel build" : "build";
+			try {
+				tree = PointQuadtree.build(dots, 0, 0, 800, 600, parallel);
+				bad += testCount(which+", size", tree.size(), 20001);
+				bad += testCount(which+", allPoints", tree.allPoints().size(), 20001);
+				bad += testCount(which+", findInCircle", tree.findInCircle(5, 5, 1).size(), 20000);
+				bad += testCount(which+", countInCircle", tree.countInCircle(5, 5, 1), 20000);
+				bad += testCount(which+", countInRectangle", tree.countInRectangle(300, 200, 500, 400), 1);
+			}
+			catch (StackOverflowError e) {
+				System.err.println(which+": stack overflow");
+				bad++;
+			}
+		}
+
+		// a small pile, to count the work: A, then B and C chained below it, then D below C
+		dots = new ArrayList<>();
+		for (int i = 0; i < 3; i++) dots.add(new Dot(5, 5)); // A, B, C
+		dots.add(new Dot(400, 300)); // D
+		tree = PointQuadtree.build(dots, 0, 0, 800, 600);
+		bad += testFind(5, 5, 1, 4, 4, 3);			// rect for all; circle for all; find A, B, C
+		bad += testFind(400, 300, 10, 4, 4, 1);		// rect for all; circle for all; find D
+		bad += testFind(2, 300, 1, 2, 1, 0);		// rect for A, B; circle for A; the rest are below and right of the pile; find none
+
+		if (bad == 0) System.out.println("test 6 passed!");
+	}
+
+	/**
+	 * Checks a count, printing a message if it's not the expected one
+	 * @param which		what was counted
+	 * @param actual	the count
+	 * @param expected	what it should be
+	 * @return  0 if passed; 1 if failed
+	 */
+	private int testCount(String which, int actual, int expected) {
+		if (actual == expected) return 0;
+		System.err.println(which+": got "+actual+" but expected "+expected);
+		return 1;
+	}
+
 
 	/**
-	 * DrawingGUI method, here toggling the mode between 'a' and 'q'
-	 * and increasing/decresing mouseRadius via +/-
+	 * DrawingGUI method, here toggling the mode between 'a', 'q', and 'n'
+	 * and increasing/decresing mouseRadius (or, in 'n' mode, how many to pick) via +/-
 	 */
 	@Override
 	public void handleKeyPress(char key) {
-		if (key=='a' || key=='q') mode = key;
-		else if (key=='+') {
+		if (key=='a' || key=='q' || key=='n') mode = key;
+		else if (mode=='n' && key=='+') {
+			numNearest++;
+			System.out.println("Nearest: "+numNearest);
+		} else if (mode=='n' && key=='-') {
+			if (numNearest > 1) numNearest--;
+			System.out.println("Nearest: "+numNearest);
+		} else if (key=='+') {
 			mouseRadius += 10;
 			System.out.println("Mouse radius: "+mouseRadius);
 		} else if (key=='-') {
@@ -215,6 +368,12 @@ public class DotTreeGUI extends DrawingGUI {
 			test2();
 		} else if (key=='3') {
 			test3();
+		} else if (key=='4') {
+			test4();
+		} else if (key=='5') {
+			test5();
+		} else if (key=='6') {
+			test6();
 		}
 
 		repaint();
@@ -236,6 +395,11 @@ public class DotTreeGUI extends DrawingGUI {
 					g.fillOval((int)d.getX()-dotRadius, (int)d.getY()-dotRadius, 2*dotRadius, 2*dotRadius);
 				}
 			}
+		} else if (mode == 'n' && found != null) {
+			g.setColor(Color.BLACK);
+			for (Dot d : found) {
+				g.drawOval((int)d.getX()-2*dotRadius, (int)d.getY()-2*dotRadius, 4*dotRadius, 4*dotRadius);
+			}
 		}
 	}
 
@@ -251,8 +415,8 @@ public class DotTreeGUI extends DrawingGUI {
 		g.setColor(rainbow[level % rainbow.length]);
 		// Draw this node's dot and lines through it
 		g.fillOval((int)tree.getPoint().getX()-dotRadius, (int)tree.getPoint().getY()-dotRadius, dotRadius*2, dotRadius*2);
-		g.drawLine((int)tree.getPoint().getX(), tree.getY1(), (int)tree.getPoint().getX(), tree.getY2());
-		g.drawLine(tree.getX1(), (int)tree.getPoint().getY(), tree.getX2(), (int)tree.getPoint().getY());
+		g.drawLine((int)tree.getPoint().getX(), (int)tree.getY1(), (int)tree.getPoint().getX(), (int)tree.getY2());
+		g.drawLine((int)tree.getX1(), (int)tree.getPoint().getY(), (int)tree.getX2(), (int)tree.getPoint().getY());
 
 		// Recurse with children
 		for (int i = 1; i < 5; i++) {
@@ -1,28 +1,47 @@
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Geometry helper methods
  * 
+ * The call counts are kept in LongAdders, which spread concurrent increments over separate cells,
+ * so queries on several threads neither lose counts nor all fight over one shared field.
+ * Counting can be switched off (e.g., for benchmarks), leaving just a test of a flag per call.
+ * 
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2015
  * @author CBK, Fall 2016, separated from quadtree, instrumented to count calls
  * 
  */
 public class Geometry {
-	private static int numInCircleTests = 0;			// keeps track of how many times pointInCircle has been called
-	private static int numCircleRectangleTests = 0;		// keeps track of how many times circleIntersectsRectangle has been called
+	private static final LongAdder numInCircleTests = new LongAdder();			// keeps track of how many times pointInCircle has been called
+	private static final LongAdder numCircleRectangleTests = new LongAdder();	// keeps track of how many times circleIntersectsRectangle has been called
+	private static boolean counting = true;										// whether to keep track at all
 		
 	public static int getNumInCircleTests() {
-		return numInCircleTests;
+		return numInCircleTests.intValue();
 	}
 
 	public static void resetNumInCircleTests() {
-		numInCircleTests = 0;
+		numInCircleTests.reset();
 	}
 
 	public static int getNumCircleRectangleTests() {
-		return numCircleRectangleTests;
+		return numCircleRectangleTests.intValue();
 	}
 
 	public static void resetNumCircleRectangleTests() {
-		numCircleRectangleTests = 0;
+		numCircleRectangleTests.reset();
+	}
+
+	public static boolean isCounting() {
+		return counting;
+	}
+
+	/**
+	 * Turns counting the calls on or off (it's on to start with); set it before starting any queries,
+	 * as threads already running them may not see the change right away
+	 */
+	public static void setCounting(boolean counting) {
+		Geometry.counting = counting;
 	}
 
 	/**
@@ -34,10 +53,87 @@ public class Geometry {
 	 * @param cr		circle radius
 	 */
 	public static boolean pointInCircle(double px, double py, double cx, double cy, double cr) {
-		numInCircleTests++;
+		if (counting) numInCircleTests.increment();
 		return (px-cx)*(px-cx) + (py-cy)*(py-cy) <= cr*cr;
 	}
 
+	/**
+	 * Tests a run of points against the circle at once, rather than a call per point: bit i of the
+	 * result is set if point from+i is within the circle. The loop is straight-line arithmetic over the
+	 * arrays (no branches or calls), for the JIT to unroll and schedule. Counts as to-from pointInCircle tests.
+	 * @param xs	points' x coords
+	 * @param ys	points' y coords
+	 * @param from	first point to test
+	 * @param to	one past the last point to test (at most 64 after from)
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @return		bitmask of the points in the circle
+	 */
+	public static long pointsInCircle(double[] xs, double[] ys, int from, int to, double cx, double cy, double cr) {
+		if (counting) numInCircleTests.add(to-from);
+		double r2 = cr*cr;
+		long mask = 0;
+		for (int i = from; i < to; i++) {
+			double dx = xs[i]-cx, dy = ys[i]-cy;
+			mask |= (dx*dx + dy*dy <= r2 ? 1L : 0L) << (i-from);
+		}
+		return mask;
+	}
+
+	/**
+	 * Like pointsInCircle, but each point has a radius of its own, and is in if its circle touches the given one
+	 * (i.e., it's within the sum of the radii)
+	 * @param xs	points' x coords
+	 * @param ys	points' y coords
+	 * @param rs	points' radii
+	 * @param from	first point to test
+	 * @param to	one past the last point to test (at most 64 after from)
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @return		bitmask of the points whose circles touch the circle
+	 */
+	public static long circlesTouching(double[] xs, double[] ys, double[] rs, int from, int to, double cx, double cy, double cr) {
+		if (counting) numInCircleTests.add(to-from);
+		long mask = 0;
+		for (int i = from; i < to; i++) {
+			double dx = xs[i]-cx, dy = ys[i]-cy, reach = rs[i]+cr;
+			mask |= (dx*dx + dy*dy <= reach*reach ? 1L : 0L) << (i-from);
+		}
+		return mask;
+	}
+
+	/**
+	 * When, as two circles each move in a straight line over a step, they first touch (i.e., their centers
+	 * first come within the sum of their radii); counts as a pointInCircle test.
+	 * Solves |p + v t| = r for the earliest t, where p is where a starts relative to b, and v how it moves relative to b.
+	 * @param ax0	first circle's center x at the start of the step
+	 * @param ay0	first circle's center y at the start
+	 * @param ax1	first circle's center x at the end
+	 * @param ay1	first circle's center y at the end
+	 * @param bx0	second circle's center x at the start
+	 * @param by0	second circle's center y at the start
+	 * @param bx1	second circle's center x at the end
+	 * @param by1	second circle's center y at the end
+	 * @param r		sum of the circles' radii
+	 * @return		the fraction of the way through the step (0 if they touch at the start), or -1 if they don't touch during it
+	 */
+	public static double timeOfImpact(double ax0, double ay0, double ax1, double ay1,
+									  double bx0, double by0, double bx1, double by1, double r) {
+		if (counting) numInCircleTests.increment();
+		double px = ax0-bx0, py = ay0-by0;
+		double vx = (ax1-ax0) - (bx1-bx0), vy = (ay1-ay0) - (by1-by0);
+		double c = px*px + py*py - r*r;
+		if (c <= 0) return 0;
+		double a = vx*vx + vy*vy, b = px*vx + py*vy;
+		if (b >= 0 || a == 0) return -1;				// not getting any closer
+		double disc = b*b - a*c;
+		if (disc < 0) return -1;						// passing by without touching
+		double t = (-b - Math.sqrt(disc)) / a;
+		return t <= 1 ? t : -1;
+	}
+
 	/**
 	 * Returns whether or not the circle intersects the rectangle
 	 * Based on discussion at http://stackoverflow.com/questions/401847/circle-rectangle-collision-detection-intersection
@@ -50,9 +146,91 @@ public class Geometry {
 	 * @param y2  	rectangle max y
 	 */
 	public static boolean circleIntersectsRectangle(double cx, double cy, double cr, double x1, double y1, double x2, double y2) {
-		numCircleRectangleTests++;
+		if (counting) numCircleRectangleTests.increment();
 		double closestX = Math.min(Math.max(cx, x1), x2);
 		double closestY = Math.min(Math.max(cy, y1), y2);
 		return (cx-closestX)*(cx-closestX) + (cy-closestY)*(cy-closestY) <= cr*cr;
 	}
+
+	/**
+	 * Returns whether or not the rectangle lies entirely inside the circle (i.e., its farthest corner does);
+	 * not instrumented, as it's used to take in whole regions at once
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param x1 	rectangle min x
+	 * @param y1  	rectangle min y
+	 * @param x2  	rectangle max x
+	 * @param y2  	rectangle max y
+	 */
+	public static boolean rectangleInCircle(double cx, double cy, double cr, double x1, double y1, double x2, double y2) {
+		double farX = Math.max(cx-x1, x2-cx);
+		double farY = Math.max(cy-y1, y2-cy);
+		return farX*farX + farY*farY <= cr*cr;
+	}
+
+	/**
+	 * Returns whether or not the two rectangles come within the distance of each other
+	 * (not instrumented; it's used to skip whole pairs of regions, not per point)
+	 * @param ax1	first rectangle min x
+	 * @param ay1	first rectangle min y
+	 * @param ax2	first rectangle max x
+	 * @param ay2	first rectangle max y
+	 * @param bx1	second rectangle min x
+	 * @param by1	second rectangle min y
+	 * @param bx2	second rectangle max x
+	 * @param by2	second rectangle max y
+	 * @param d		distance
+	 */
+	public static boolean rectanglesWithin(double ax1, double ay1, double ax2, double ay2,
+										   double bx1, double by1, double bx2, double by2, double d) {
+		double gapX = Math.max(0, Math.max(ax1-bx2, bx1-ax2));
+		double gapY = Math.max(0, Math.max(ay1-by2, by1-ay2));
+		return gapX*gapX + gapY*gapY <= d*d;
+	}
+
+	/**
+	 * Returns the squared distance from the point to the nearest point of the rectangle
+	 * (0 if it's inside); not instrumented
+	 * @param px	point x coord
+	 * @param py	point y coord
+	 * @param x1	rectangle min x
+	 * @param y1	rectangle min y
+	 * @param x2	rectangle max x
+	 * @param y2	rectangle max y
+	 */
+	public static double pointRectangleDistanceSquared(double px, double py, double x1, double y1, double x2, double y2) {
+		double dx = px - Math.min(Math.max(px, x1), x2);
+		double dy = py - Math.min(Math.max(py, y1), y2);
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * Returns whether or not the point is within the rectangle (not instrumented)
+	 * @param px	point x coord
+	 * @param py	point y coord
+	 * @param x1	rectangle min x
+	 * @param y1	rectangle min y
+	 * @param x2	rectangle max x
+	 * @param y2	rectangle max y
+	 */
+	public static boolean pointInRectangle(double px, double py, double x1, double y1, double x2, double y2) {
+		return px >= x1 && px <= x2 && py >= y1 && py <= y2;
+	}
+
+	/**
+	 * Returns whether or not the two rectangles overlap (not instrumented)
+	 */
+	public static boolean rectanglesIntersect(double ax1, double ay1, double ax2, double ay2,
+											  double bx1, double by1, double bx2, double by2) {
+		return ax1 <= bx2 && bx1 <= ax2 && ay1 <= by2 && by1 <= ay2;
+	}
+
+	/**
+	 * Returns whether or not the first rectangle lies entirely inside the second (not instrumented)
+	 */
+	public static boolean rectangleInRectangle(double ax1, double ay1, double ax2, double ay2,
+											   double bx1, double by1, double bx2, double by2) {
+		return ax1 >= bx1 && ax2 <= bx2 && ay1 >= by1 && ay2 <= by2;
+	}
 }
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * A point quadtree kept in a memory-mapped file rather than on the heap, for more points than would
+ * fit there as a PointQuadtree of Dots. The file holds one fixed-size record per node, and it's the
+ * operating system that pages them in as queries touch them, so opening a saved tree is just mapping it.
+ *
+ * Records are in preorder: each node comes right before its subtree, and a node's children are
+ * found by record number. Each record holds the node's point, its region, and its 4 children (-1 where
+ * there's none). The tree is built in place in the file, anchoring each region at the point nearest
+ * the median x and y (estimated from a sample, for big regions) as PointQuadtree.build does.
+ *
+ * Points come back out as Dots; only their coordinates are stored.
+ */
+public class MappedQuadtree implements SpatialIndex<Dot> {
+	private static final int magic = 0x51545245;						// "QTRE", to recognize the files
+	private static final int recordBits = 6;							// records are 64 bytes
+	private static final int chunkBits = 30 - recordBits;				// 2^24 records (1GB) per mapping
+	private static final long chunkMask = (1L << chunkBits) - 1;
+	private static final int sampleSize = 4096;							// most points used to estimate medians
+
+	// offsets of the fields in a record (the header is record -1: magic, then count; the root's record holds the tree's region)
+	private static final int PX = 0, PY = 8, X1 = 16, Y1 = 24, X2 = 32, Y2 = 40, CHILDREN = 48;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] chunks;	// the file, mapped a chunk at a time (mappings are limited to 2GB)
+	private final int n;						// number of nodes (= number of points)
+
+	private MappedQuadtree(FileChannel channel, int n, boolean writable) throws IOException {
+		this.channel = channel;
+		this.n = n;
+		long bytes = ((long)n + 1) << recordBits;
+		chunks = new MappedByteBuffer[(int)((bytes - 1) >>> 30) + 1];
+		for (int c = 0; c < chunks.length; c++) {
+			long start = (long)c << 30;
+			chunks[c] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					start, Math.min(1L << 30, bytes - start));
+			chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Writes a tree holding the points to the file (replacing anything there), and opens it
+	 * @param file		where to keep the tree
+	 * @param points	points to put in the tree (at least one)
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @return			the tree
+	 */
+	public static MappedQuadtree create(Path file, List<? extends Point2D> points, double x1, double y1, double x2, double y2) throws IOException {
+		return create(file, points.size(), points.iterator(), x1, y1, x2, y2);
+	}
+
+	/**
+	 * Like create with a list, but the points are only read through once, so they needn't all be in memory
+	 * (e.g., they can be generated, or read from another file, as the iterator goes).
+	 * If it fails (e.g., a point is outside the region, or the iterator runs out early), the file is deleted.
+	 * @param count		how many points the iterator gives (at least one)
+	 */
+	public static MappedQuadtree create(Path file, int count, Iterator<? extends Point2D> points,
+										double x1, double y1, double x2, double y2) throws IOException {
+		if (count < 1) throw new IllegalArgumentException("can't build a quadtree without any points");
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedQuadtree tree = new MappedQuadtree(channel, count, true);
+			for (int i = 0; i < count; i++) {
+				Point2D p = points.next();
+				if (!Geometry.pointInRectangle(p.getX(), p.getY(), x1, y1, x2, y2)) {
+					throw new IllegalArgumentException("point "+p+" is outside the tree's region");
+				}
+				tree.putDouble(i, PX, p.getX());
+				tree.putDouble(i, PY, p.getY());
+			}
+			tree.buildInPlace(x1, y1, x2, y2);
+			// the header goes in last, so a file that wasn't finished isn't recognized as a tree
+			tree.chunk(-1).putInt(tree.offset(-1), magic);
+			tree.chunk(-1).putInt(tree.offset(-1) + 4, count);
+			for (MappedByteBuffer chunk : tree.chunks) chunk.force();
+			return tree;
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a tree written earlier by create; nothing is read until it's queried
+	 * @param file		where the tree was written
+	 * @return			the tree
+	 */
+	public static MappedQuadtree open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 1 << recordBits);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != magic) {
+			channel.close();
+			throw new IOException(file+" doesn't hold a MappedQuadtree");
+		}
+		return new MappedQuadtree(channel, header.getInt(4), false);
+	}
+
+	/**
+	 * Closes the file. The mappings stay valid until they're garbage collected, but the tree shouldn't be used after.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// Record access
+
+	private MappedByteBuffer chunk(long record) {
+		return chunks[(int)((record + 1) >>> chunkBits)];
+	}
+
+	private int offset(long record) {
+		return (int)(((record + 1) & chunkMask) << recordBits);
+	}
+
+	private double getDouble(int record, int field) {
+		return chunk(record).getDouble(offset(record) + field);
+	}
+
+	private void putDouble(int record, int field, double value) {
+		chunk(record).putDouble(offset(record) + field, value);
+	}
+
+	private int getChild(int record, int quadrant) {
+		return chunk(record).getInt(offset(record) + CHILDREN + 4*(quadrant-1));
+	}
+
+	private void putChild(int record, int quadrant, int child) {
+		chunk(record).putInt(offset(record) + CHILDREN + 4*(quadrant-1), child);
+	}
+
+	/**
+	 * Swaps the points of the two records (before the regions and children are filled in)
+	 */
+	private void swapPoints(int a, int b) {
+		double ax = getDouble(a, PX), ay = getDouble(a, PY);
+		putDouble(a, PX, getDouble(b, PX)); putDouble(a, PY, getDouble(b, PY));
+		putDouble(b, PX, ax); putDouble(b, PY, ay);
+	}
+
+	// Building
+
+	/**
+	 * A span of records still to be made into a subtree, and the region it gets
+	 */
+	private static class Pending {
+		int from, to;
+		double x1, y1, x2, y2;
+
+		Pending(int from, int to, double x1, double y1, double x2, double y2) {
+			this.from = from; this.to = to;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		}
+	}
+
+	/**
+	 * Rearranges the points in the records into preorder, filling in the regions and children as it goes
+	 */
+	private void buildInPlace(double rx1, double ry1, double rx2, double ry2) {
+		double[] scratch = new double[sampleSize];
+		Deque<Pending> todo = new ArrayDeque<Pending>();
+		todo.push(new Pending(0, n, rx1, ry1, rx2, ry2));
+		while (!todo.isEmpty()) {
+			Pending span = todo.pop();
+			int node = span.from;
+			swapPoints(node, medianRecord(span.from, span.to, scratch));
+			double px = getDouble(node, PX), py = getDouble(node, PY);
+			putDouble(node, X1, span.x1); putDouble(node, Y1, span.y1);
+			putDouble(node, X2, span.x2); putDouble(node, Y2, span.y2);
+
+			// split the rest into quadrants 1-2 and 3-4, then each of those in two
+			int mid = partition(span.from+1, span.to, px, py, 3);
+			int[] starts = { span.from+1, partition(span.from+1, mid, px, py, 2), mid, partition(mid, span.to, px, py, 4), span.to };
+
+			for (int q = 4; q > 0; q--) {
+				if (starts[q] == starts[q-1]) {
+					putChild(node, q, -1);
+					continue;
+				}
+				putChild(node, q, starts[q-1]);
+				double[] region = PointQuadtree.childRegion(q, px, py, span.x1, span.y1, span.x2, span.y2);
+				todo.push(new Pending(starts[q-1], starts[q], region[0], region[1], region[2], region[3]));
+			}
+		}
+	}
+
+	/**
+	 * Moves the records in [from,to) whose quadrant (with respect to (px,py)) is below the given one to the front
+	 * @return		where the rest start
+	 */
+	private int partition(int from, int to, double px, double py, int quadrant) {
+		int i = from, j = to-1;
+		while (true) {
+			while (i <= j && PointQuadtree.findQuadrant(px, py, getDouble(i, PX), getDouble(i, PY)) < quadrant) i++;
+			while (i <= j && PointQuadtree.findQuadrant(px, py, getDouble(j, PX), getDouble(j, PY)) >= quadrant) j--;
+			if (i >= j) return i;
+			swapPoints(i, j);
+		}
+	}
+
+	/**
+	 * Finds the record in [from,to) whose point is closest to the median x and y,
+	 * estimated from an evenly spaced sample for big spans
+	 * @param scratch	space for the sampled coords
+	 */
+	private int medianRecord(int from, int to, double[] scratch) {
+		int m = Math.min(to-from, sampleSize);
+		double step = (double)(to-from) / m;
+		for (int k = 0; k < m; k++) scratch[k] = getDouble(from + (int)(k*step), PX);
+		double mx = PointQuadtree.select(scratch, m, m/2);
+		for (int k = 0; k < m; k++) scratch[k] = getDouble(from + (int)(k*step), PY);
+		double my = PointQuadtree.select(scratch, m, m/2);
+
+		int best = from;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			double dx = getDouble(i, PX)-mx, dy = getDouble(i, PY)-my;
+			if (dx*dx + dy*dy < bestDist) {
+				best = i;
+				bestDist = dx*dx + dy*dy;
+			}
+		}
+		return best;
+	}
+
+	// Queries
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * All the points, in preorder
+	 */
+	public List<Dot> allPoints() {
+		List<Dot> list = new ArrayList<Dot>(n);
+		for (int i = 0; i < n; i++) list.add(new Dot(getDouble(i, PX), getDouble(i, PY)));
+		return list;
+	}
+
+	public List<Dot> findInCircle(double cx, double cy, double cr) {
+		List<Dot> list = new ArrayList<Dot>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super Dot> sink) {
+		int[] stack = new int[64];
+		int size = 0;
+		stack[size++] = 0;
+		while (size > 0) {
+			int node = stack[--size];
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, getDouble(node, X1), getDouble(node, Y1), getDouble(node, X2), getDouble(node, Y2))) continue;
+			double x = getDouble(node, PX), y = getDouble(node, PY);
+			if (Geometry.pointInCircle(x, y, cx, cy, cr)) sink.accept(new Dot(x, y));
+			for (int q = 4; q > 0; q--) {
+				int child = getChild(node, q);
+				if (child < 0) continue;
+				if (size == stack.length) stack = Arrays.copyOf(stack, size*2);
+				stack[size++] = child;
+			}
+		}
+	}
+
+	/**
+	 * Writes a tree of random points to a temporary file, reopens it, and checks it against an ArrayQuadtree
+	 * @param args	optionally, how many points (default 2 million)
+	 */
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		Path file = Files.createTempFile("quadtree", ".bin");
+		try {
+			// the points are generated as they're written, so they're never all on the heap at once
+			Random random = new Random(0);
+			Iterator<Dot> generated = new Iterator<Dot>() {
+				public boolean hasNext() { return true; }
+				public Dot next() { return new Dot(800*random.nextDouble(), 600*random.nextDouble()); }
+			};
+			long start = System.nanoTime();
+			create(file, count, generated, 0, 0, 800, 600).close();
+			System.out.println("created "+count+" points in "+(System.nanoTime()-start)/1000000+" ms ("+Files.size(file)/(1<<20)+" MB)");
+
+			start = System.nanoTime();
+			MappedQuadtree tree = open(file);
+			System.out.println("opened in "+(System.nanoTime()-start)/1000+" us");
+
+			ArrayQuadtree<Dot> check = ArrayQuadtree.build(tree.allPoints(), 0, 0, 800, 600);
+			int bad = 0;
+			for (int i = 0; i < 1000; i++) {
+				double cx = 800*random.nextDouble(), cy = 600*random.nextDouble(), cr = 20*random.nextDouble();
+				if (tree.findInCircle(cx, cy, cr).size() != check.findInCircle(cx, cy, cr).size()) bad++;
+			}
+			System.out.println(bad == 0 ? "queries agree with ArrayQuadtree" : bad+" queries disagree with ArrayQuadtree");
+			tree.close();
+
+			// a point outside the region, or running out of points, leaves no file behind
+			for (List<Dot> points : Arrays.asList(Arrays.asList(new Dot(1, 1), new Dot(900, 1)), Arrays.asList(new Dot(1, 1)))) {
+				try {
+					create(file, 2, points.iterator(), 0, 0, 800, 600).close();
+					System.out.println("created a tree from "+points);
+				}
+				catch (RuntimeException e) {
+					System.out.println(e.getClass().getSimpleName()+" creating from "+points+(Files.exists(file) ? "; file left behind" : "; file deleted"));
+				}
+			}
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
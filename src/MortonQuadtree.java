@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A linear quadtree: no nodes at all, just the points sorted by their Morton (Z-order) codes. The points'
+ * bounding box is divided into 65536x65536 cells, and a point's code interleaves the bits of its cell's
+ * column and row, so that every quadrant of every level of the (implicit) quadtree is one contiguous
+ * range of codes, and so one contiguous range of the sorted array. A query walks down the quadrants its
+ * circle touches, finding each one's range by binary search within its parent's, takes ranges inside the
+ * circle whole, and tests small ones in batches (Geometry.pointsInCircle) rather than dividing further.
+ *
+ * Rebuilding is a radix sort of the codes into arrays that are kept from one rebuild to the next, so
+ * like SpatialHashGrid it's meant to be rebuilt every step, in linear time, allocating nothing once the
+ * arrays are big enough; and it covers wherever the points are, with no fixed region.
+ */
+public class MortonQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final int bits = 16;					// bits of column and row in a code, so 2^bits cells across
+	private static final int cellsAcross = 1 << bits;
+	private static final int idBits = 31;				// a key is code<<idBits | id
+	private static final int leafSize = 64;				// ranges this small are tested point by point, not divided
+
+	private List<E> elements = new ArrayList<>();		// the points, by id (their index in the list built from)
+	private int n = 0;									// number of points
+	private double minX, minY;							// top left of the points' bounding box
+	private double cellWidth = 1, cellHeight = 1;		// size of each cell
+	private long[] keys = new long[0];					// each point's code and id, sorted by code
+	private long[] scratch = new long[0];				// the radix sort's other buffer, kept to reuse
+	private final int[] counts = new int[257];			// and its counts of each byte value
+	private double[] xs = new double[0], ys = new double[0];	// coords, in the same order as keys
+	private double[] radii = new double[0];				// for findAllPairsWithin, in the same order as keys, kept to reuse
+
+	/**
+	 * An empty index; rebuild it to put points in
+	 */
+	public MortonQuadtree() {
+	}
+
+	/**
+	 * Builds an index holding all the points
+	 * @param points	points to put in the index
+	 * @return			the index
+	 */
+	public static <E extends Point2D> MortonQuadtree<E> build(List<E> points) {
+		MortonQuadtree<E> tree = new MortonQuadtree<E>();
+		tree.rebuild(points);
+		return tree;
+	}
+
+	/**
+	 * Replaces whatever the index held with the points, where they are now.
+	 * Holds on to the list (rather than copying it), so rebuild again after changing it.
+	 * @param points	the points
+	 */
+	public void rebuild(List<E> points) {
+		elements = points;
+		n = points.size();
+		if (keys.length < n) {
+			int length = Math.max(n, 2*keys.length);
+			keys = new long[length];
+			scratch = new long[length];
+			xs = new double[length];
+			ys = new double[length];
+		}
+
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		minX = Double.POSITIVE_INFINITY; minY = Double.POSITIVE_INFINITY;
+		for (int id = 0; id < n; id++) {
+			E p = points.get(id);
+			minX = Math.min(minX, p.getX()); maxX = Math.max(maxX, p.getX());
+			minY = Math.min(minY, p.getY()); maxY = Math.max(maxY, p.getY());
+		}
+		cellWidth = Math.max((maxX-minX)/cellsAcross, Double.MIN_VALUE);
+		cellHeight = Math.max((maxY-minY)/cellsAcross, Double.MIN_VALUE);
+
+		for (int id = 0; id < n; id++) {
+			E p = points.get(id);
+			int column = Math.min(cellsAcross-1, (int)((p.getX()-minX)/cellWidth));
+			int row = Math.min(cellsAcross-1, (int)((p.getY()-minY)/cellHeight));
+			keys[id] = (spread(column) | spread(row) << 1) << idBits | id;
+		}
+		radixSort();
+		for (int k = 0; k < n; k++) {
+			E p = points.get(id(k));
+			xs[k] = p.getX();
+			ys[k] = p.getY();
+		}
+	}
+
+	/**
+	 * Sorts the keys by code, a byte at a time from the lowest, skipping a byte that's the same for every key
+	 * (as the high ones are when the points are bunched up)
+	 */
+	private void radixSort() {
+		for (int shift = idBits; shift < idBits + 2*bits; shift += 8) {
+			Arrays.fill(counts, 0);
+			for (int k = 0; k < n; k++) counts[(int)(keys[k] >>> shift & 0xFF) + 1]++;
+			if (n == 0 || counts[(int)(keys[0] >>> shift & 0xFF) + 1] == n) continue;
+			for (int b = 1; b < counts.length; b++) counts[b] += counts[b-1];
+			for (int k = 0; k < n; k++) scratch[counts[(int)(keys[k] >>> shift & 0xFF)]++] = keys[k];
+			long[] sorted = scratch;
+			scratch = keys;
+			keys = sorted;
+		}
+	}
+
+	/**
+	 * Spreads the low bits of v out to the even bits of the result (so bit i goes to bit 2i)
+	 */
+	private static long spread(int v) {
+		long x = v & 0xFFFFL;
+		x = (x | x << 8) & 0x00FF00FFL;
+		x = (x | x << 4) & 0x0F0F0F0FL;
+		x = (x | x << 2) & 0x33333333L;
+		x = (x | x << 1) & 0x55555555L;
+		return x;
+	}
+
+	/**
+	 * Undoes spread, gathering the even bits of x back together
+	 */
+	private static int compact(long x) {
+		x &= 0x55555555L;
+		x = (x | x >>> 1) & 0x33333333L;
+		x = (x | x >>> 2) & 0x0F0F0F0FL;
+		x = (x | x >>> 4) & 0x00FF00FFL;
+		x = (x | x >>> 8) & 0x0000FFFFL;
+		return (int)x;
+	}
+
+	/**
+	 * The id of the point at position k of the sorted keys
+	 */
+	private int id(int k) {
+		return (int)(keys[k] & ((1L << idBits) - 1));
+	}
+
+	/**
+	 * The first position in lo..hi-1 whose code is at least the given one (hi if none is)
+	 */
+	private int firstAtLeast(long code, int lo, int hi) {
+		long key = code << idBits;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * All the points, in Z-order
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<>(n);
+		for (int k = 0; k < n; k++) list.add(elements.get(id(k)));
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point in the circle to the sink; quadrants inside the circle are taken whole
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		if (n > 0) search(0, 2*bits, 0, n, cx, cy, cr, p -> {
+			sink.accept(p);
+			return false;
+		});
+	}
+
+	@Override
+	public boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		return n > 0 && search(0, 2*bits, 0, n, cx, cy, cr, test);
+	}
+
+	/**
+	 * Hands the points of the quadrant that are in the circle to the visitor, until it says to stop.
+	 * Recursive, as the quadrants are never more than bits+1 deep.
+	 * @param code		the quadrant's first code
+	 * @param shift		how many low bits of code vary within the quadrant (2*bits for the whole thing, 0 for a cell)
+	 * @param lo		the quadrant's first position in keys
+	 * @param hi		one past its last
+	 * @param visit		called with each point in the circle; returns true to stop
+	 * @return			true if the visitor stopped
+	 */
+	private boolean search(long code, int shift, int lo, int hi, double cx, double cy, double cr, Predicate<? super E> visit) {
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, left(code), top(code), right(code, shift), bottom(code, shift))) return false;
+		if (Geometry.rectangleInCircle(cx, cy, cr, left(code), top(code), right(code, shift), bottom(code, shift))) {
+			for (int k = lo; k < hi; k++) {
+				if (visit.test(elements.get(id(k)))) return true;
+			}
+			return false;
+		}
+		if (hi - lo <= leafSize || shift == 0) {
+			for (int from = lo; from < hi; from += 64) {
+				long in = Geometry.pointsInCircle(xs, ys, from, Math.min(hi, from+64), cx, cy, cr);
+				for (; in != 0; in &= in-1) {
+					if (visit.test(elements.get(id(from + Long.numberOfTrailingZeros(in))))) return true;
+				}
+			}
+			return false;
+		}
+		// the four sub-quadrants' ranges, one after another
+		long quarter = 1L << (shift-2);
+		for (int q = 0, start = lo; q < 4 && start < hi; q++) {
+			int end = q == 3 ? hi : firstAtLeast(code + (q+1)*quarter, start, hi);
+			if (start < end && search(code + q*quarter, shift-2, start, end, cx, cy, cr, visit)) return true;
+			start = end;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch, with one search per point, reporting a pair only
+	 * from the one of its two points that comes first in Z-order, so that each is reported exactly once
+	 * (and quadrants entirely before the point are skipped)
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	@Override
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		if (radii.length < n) radii = new double[xs.length];
+		double maxR = 0;
+		for (int k = 0; k < n; k++) {
+			radii[k] = radius.applyAsDouble(elements.get(id(k)));
+			maxR = Math.max(maxR, radii[k]);
+		}
+		for (int k = 0; k < n-1; k++) {
+			pairsAfter(k, 0, 2*bits, k+1, n, radii[k] + maxR, pairs);
+		}
+	}
+
+	/**
+	 * Like search, but for the points after position k in the quadrant whose circles touch k's
+	 * @param k			position of the point to find touching ones for
+	 * @param reach		how far away a point can be and still touch it (its radius plus the largest)
+	 * @param lo		the first position to look at (after k, and in the quadrant)
+	 */
+	private void pairsAfter(int k, long code, int shift, int lo, int hi, double reach, BiConsumer<? super E, ? super E> pairs) {
+		double cx = xs[k], cy = ys[k];
+		if (!Geometry.circleIntersectsRectangle(cx, cy, reach, left(code), top(code), right(code, shift), bottom(code, shift))) return;
+		if (hi - lo <= leafSize || shift == 0) {
+			for (int from = lo; from < hi; from += 64) {
+				long touching = Geometry.circlesTouching(xs, ys, radii, from, Math.min(hi, from+64), cx, cy, radii[k]);
+				for (; touching != 0; touching &= touching-1) {
+					pairs.accept(elements.get(id(k)), elements.get(id(from + Long.numberOfTrailingZeros(touching))));
+				}
+			}
+			return;
+		}
+		long quarter = 1L << (shift-2);
+		for (int q = 0, start = lo; q < 4 && start < hi; q++) {
+			int end = q == 3 ? hi : firstAtLeast(code + (q+1)*quarter, start, hi);
+			if (start < end) pairsAfter(k, code + q*quarter, shift-2, start, end, reach, pairs);
+			start = end;
+		}
+	}
+
+	// A quadrant's bounds, each a cell wider all round than its cells, since a point's cell is found by
+	// rounding down, which can put one just over the line; and open-ended at the edges of the bounding box.
+
+	private double left(long code) {
+		int column = compact(code);
+		return column == 0 ? Double.NEGATIVE_INFINITY : minX + (column-1)*cellWidth;
+	}
+
+	private double top(long code) {
+		int row = compact(code >>> 1);
+		return row == 0 ? Double.NEGATIVE_INFINITY : minY + (row-1)*cellHeight;
+	}
+
+	private double right(long code, int shift) {
+		int end = compact(code) + (1 << shift/2);
+		return end >= cellsAcross ? Double.POSITIVE_INFINITY : minX + (end+1)*cellWidth;
+	}
+
+	private double bottom(long code, int shift) {
+		int end = compact(code >>> 1) + (1 << shift/2);
+		return end >= cellsAcross ? Double.POSITIVE_INFINITY : minY + (end+1)*cellHeight;
+	}
+}
@@ -0,0 +1,43 @@
+import java.util.Arrays;
+
+/**
+ * Explicit stack of nodes, so that walking even a degenerate (chain-like) tree can't overflow the call stack;
+ * shared by the node-based trees (each casts what it pops back to its own node type).
+ * There's one per thread, reused by all its traversals; each traversal only pops down to where the stack was
+ * when it started, so a sink can safely start another query, even on another tree.
+ */
+class NodeStack {
+	private static final ThreadLocal<NodeStack> stacks = ThreadLocal.withInitial(NodeStack::new);	// one per thread
+
+	private Object[] nodes = new Object[64];
+	private int size = 0;
+
+	/**
+	 * The calling thread's stack
+	 */
+	public static NodeStack current() {
+		return stacks.get();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void push(Object node) {
+		if (size == nodes.length) nodes = Arrays.copyOf(nodes, size*2);
+		nodes[size++] = node;
+	}
+
+	public Object pop() {
+		Object node = nodes[--size];
+		nodes[size] = null;		// don't hold on to trees that have been dropped
+		return node;
+	}
+
+	/**
+	 * Pops everything above the given size
+	 */
+	public void truncate(int newSize) {
+		while (size > newSize) nodes[--size] = null;
+	}
+}
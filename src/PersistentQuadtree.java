@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * An immutable point quadtree, split the same way as PointQuadtree. Inserting gives back a new tree,
+ * leaving this one as it was: only the nodes on the path from the root down to the new point are copied,
+ * and everything else is shared with the old tree. So keeping a snapshot per update costs O(depth) nodes,
+ * not a copy of the tree, and a snapshot can be read on one thread while later ones are made on another,
+ * with no locking (all the fields are final).
+ */
+public class PersistentQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private final double x1, y1, x2, y2;		// region of the whole tree
+	private final Node<E> root;					// null if empty
+
+	/**
+	 * One point, the region it splits, and its children; never changed once made
+	 */
+	private static class Node<E> {
+		final E point;
+		final double px, py;					// where the point was when inserted; splits the children
+		final double x1, y1, x2, y2;			// region
+		final Node<E> c1, c2, c3, c4;			// children
+		final int count;						// number of points in this subtree
+
+		Node(E point, double px, double py, double x1, double y1, double x2, double y2,
+			 Node<E> c1, Node<E> c2, Node<E> c3, Node<E> c4) {
+			this.point = point;
+			this.px = px; this.py = py;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.c1 = c1; this.c2 = c2; this.c3 = c3; this.c4 = c4;
+			count = 1 + (c1 == null ? 0 : c1.count) + (c2 == null ? 0 : c2.count)
+					+ (c3 == null ? 0 : c3.count) + (c4 == null ? 0 : c4.count);
+		}
+
+		Node<E> getChild(int quadrant) {
+			if (quadrant == 1) return c1;
+			if (quadrant == 2) return c2;
+			if (quadrant == 3) return c3;
+			return c4;
+		}
+
+		/**
+		 * A copy of this node, with the child at the quadrant replaced
+		 */
+		Node<E> withChild(int quadrant, Node<E> child) {
+			return new Node<E>(point, px, py, x1, y1, x2, y2,
+					quadrant == 1 ? child : c1, quadrant == 2 ? child : c2,
+					quadrant == 3 ? child : c3, quadrant == 4 ? child : c4);
+		}
+	}
+
+	/**
+	 * An empty tree over the region
+	 * @param x1	top left x coord
+	 * @param y1	top left y coord
+	 * @param x2	bottom right x coord
+	 * @param y2	bottom right y coord
+	 */
+	public PersistentQuadtree(double x1, double y1, double x2, double y2) {
+		this(x1, y1, x2, y2, null);
+	}
+
+	private PersistentQuadtree(double x1, double y1, double x2, double y2, Node<E> root) {
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		this.root = root;
+	}
+
+	/**
+	 * A tree with the point added, sharing all but the path down to it with this tree (which is unchanged).
+	 * The point has to lie within the tree's region, as the queries take in a region lying inside the circle
+	 * without testing its points.
+	 * @param p2	the point, within the region
+	 * @return		the new tree
+	 */
+	public PersistentQuadtree<E> insert(E p2) {
+		double x = p2.getX(), y = p2.getY();
+		if (!Geometry.pointInRectangle(x, y, x1, y1, x2, y2)) throw new IllegalArgumentException("point "+p2+" is outside the tree's region");
+		if (root == null) {
+			return new PersistentQuadtree<E>(x1, y1, x2, y2, new Node<E>(p2, x, y, x1, y1, x2, y2, null, null, null, null));
+		}
+
+		// how far down the empty slot is, and then the way there
+		int depth = 0;
+		for (Node<E> node = root; node != null; node = node.getChild(PointQuadtree.findQuadrant(node.px, node.py, x, y))) depth++;
+		@SuppressWarnings("unchecked")
+		Node<E>[] path = (Node<E>[])new Node<?>[depth];
+		int[] quadrants = new int[depth];
+		Node<E> node = root;
+		for (int i = 0; i < depth; i++) {
+			path[i] = node;
+			quadrants[i] = PointQuadtree.findQuadrant(node.px, node.py, x, y);
+			node = node.getChild(quadrants[i]);
+		}
+
+		// the new leaf, with the region of its slot
+		Node<E> parent = path[depth-1];
+		double[] region = PointQuadtree.childRegion(quadrants[depth-1], parent.px, parent.py, parent.x1, parent.y1, parent.x2, parent.y2);
+		Node<E> copy = new Node<E>(p2, x, y, region[0], region[1], region[2], region[3], null, null, null, null);
+
+		// and copies of its ancestors, each pointing to the copy below
+		for (int i = depth-1; i >= 0; i--) {
+			copy = path[i].withChild(quadrants[i], copy);
+		}
+		return new PersistentQuadtree<E>(x1, y1, x2, y2, copy);
+	}
+
+	public int size() {
+		return root == null ? 0 : root.count;
+	}
+
+	/**
+	 * All the points, parents before children, quadrants in order
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<>();
+		if (root == null) return list;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(root);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			list.add(node.point);
+			pushChildren(stack, node);
+		}
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point in the circle to the sink; like PointQuadtree's, takes regions inside the circle whole
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		if (root == null) return;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(root);
+			while (stack.size() > base) {
+				Node<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+					emitAll(stack, node, sink);
+					continue;
+				}
+				if (Geometry.pointInCircle(node.px, node.py, cx, cy, cr)) sink.accept(node.point);
+				pushChildren(stack, node);
+			}
+		}
+		finally {
+			// in case the sink threw
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Counts the points within the circle, adding whole subtree counts for regions inside it
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @return		how many points are in the circle
+	 */
+	public int countInCircle(double cx, double cy, double cr) {
+		if (root == null) return 0;
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		int count = 0;
+		stack.push(root);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+			if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+				count += node.count;
+				continue;
+			}
+			if (Geometry.pointInCircle(node.px, node.py, cx, cy, cr)) count++;
+			pushChildren(stack, node);
+		}
+		return count;
+	}
+
+	/**
+	 * Hands every point in the node's subtree to the sink, using the stack above where it is now
+	 */
+	private static <E> void emitAll(NodeStack stack, Node<E> top, Consumer<? super E> sink) {
+		int base = stack.size();
+		stack.push(top);
+		while (stack.size() > base) {
+			Node<E> node = pop(stack);
+			sink.accept(node.point);
+			pushChildren(stack, node);
+		}
+	}
+
+	/**
+	 * Pushes the node's children, last quadrant first, so that they're popped in order 1-4
+	 */
+	private static <E> void pushChildren(NodeStack stack, Node<E> node) {
+		if (node.c4 != null) stack.push(node.c4);
+		if (node.c3 != null) stack.push(node.c3);
+		if (node.c2 != null) stack.push(node.c2);
+		if (node.c1 != null) stack.push(node.c1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Node<E> pop(NodeStack stack) {
+		return (Node<E>)stack.pop();
+	}
+
+	/**
+	 * Driver: keeps a snapshot after every insert, then checks that each still holds just the points
+	 * inserted before it, and how many nodes the snapshots cost altogether
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Random random = new Random(0);
+		List<Dot> dots = new ArrayList<>();
+		List<PersistentQuadtree<Dot>> snapshots = new ArrayList<>();
+		PersistentQuadtree<Dot> tree = new PersistentQuadtree<>(0, 0, 800, 600);
+		snapshots.add(tree);
+		for (int i = 0; i < n; i++) {
+			Dot d = new Dot(800*random.nextDouble(), 600*random.nextDouble());
+			dots.add(d);
+			tree = tree.insert(d);
+			snapshots.add(tree);
+		}
+
+		int bad = 0;
+		for (int i = 0; i <= n; i += Math.max(1, n/100)) {
+			PersistentQuadtree<Dot> snapshot = snapshots.get(i);
+			if (snapshot.size() != i) bad++;
+			double cx = 800*random.nextDouble(), cy = 600*random.nextDouble(), cr = 100*random.nextDouble();
+			int expected = 0;
+			for (Dot d : dots.subList(0, i)) if (Geometry.pointInCircle(d.getX(), d.getY(), cx, cy, cr)) expected++;
+			if (snapshot.findInCircle(cx, cy, cr).size() != expected || snapshot.countInCircle(cx, cy, cr) != expected) {
+				bad++;
+				System.err.println("snapshot "+i+" disagrees about ("+cx+","+cy+")@"+cr);
+			}
+		}
+
+		// distinct nodes over all the snapshots, vs. what copying the whole tree each time would take
+		Set<Object> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (PersistentQuadtree<Dot> snapshot : snapshots) {
+			if (snapshot.root == null || nodes.contains(snapshot.root)) continue;
+			NodeStack stack = NodeStack.current();
+			stack.push(snapshot.root);
+			while (stack.size() > 0) {
+				Node<Dot> node = pop(stack);
+				if (nodes.add(node)) pushChildren(stack, node); // a node seen before has had its subtree counted
+			}
+		}
+		System.out.printf("%d snapshots: %d nodes in all (%.1f per insert), vs. %d for full copies%n",
+				snapshots.size(), nodes.size(), (double)nodes.size()/n, (long)n*(n+1)/2);
+		if (bad == 0) System.out.println("persistent test passed!");
+	}
+}
@@ -1,5 +1,18 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 /**
  * A point quadtree: stores an element at a 2D position, 
@@ -13,23 +26,31 @@ import java.util.List;
  */
 
 
-public class PointQuadtree<E extends Point2D> {
+public class PointQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final int parallelThreshold = 10000;	// below this many points, bulk building isn't worth forking
+	private static final int parallelLevels = 6;		// and below this many levels, there are already plenty of tasks (up to 4^6)
+
 	private E point;							// the point anchoring this node
-	private int x1, y1;							// upper-left corner of the region
-	private int x2, y2;							// bottom-right corner of the region
+	private double px, py;						// where the point was when placed; splits the children
+	private double x1, y1;						// upper-left corner of the region
+	private double x2, y2;						// bottom-right corner of the region
 	private PointQuadtree<E> c1, c2, c3, c4;	// children
+	private PointQuadtree<E> parent;			// null for the root
+	private int count = 1;						// how many points are in this subtree
 
 
 	/**
 	 * Initializes a leaf quadtree, holding the point in the rectangle
-	 * @param point		point placed in the region
+	 * @param point		point placed in the region (which must lie within it)
 	 * @param x1		top left x coord
 	 * @param y1		top left y coord
 	 * @param x2		bottom right x coord
 	 * @param y2		bottom right y coord
 	 */
-	public PointQuadtree(E point, int x1, int y1, int x2, int y2) {
+	public PointQuadtree(E point, double x1, double y1, double x2, double y2) {
+		if (!Geometry.pointInRectangle(point.getX(), point.getY(), x1, y1, x2, y2)) throw new IllegalArgumentException("point "+point+" is outside the tree's region");
 		this.point = point;
+		this.px = point.getX(); this.py = point.getY();
 		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
 	}
 
@@ -47,7 +68,7 @@ public class PointQuadtree<E extends Point2D> {
 	 * Get x1
 	 * @return
 	 */
-	public int getX1() {
+	public double getX1() {
 		return x1;
 	}
 
@@ -55,7 +76,7 @@ public class PointQuadtree<E extends Point2D> {
 	 * Get y1
 	 * @return
 	 */
-	public int getY1() {
+	public double getY1() {
 		return y1;
 	}
 
@@ -63,7 +84,7 @@ public class PointQuadtree<E extends Point2D> {
 	 * get x2
 	 * @return
 	 */
-	public int getX2() {
+	public double getX2() {
 		return x2;
 	}
 
@@ -71,7 +92,7 @@ public class PointQuadtree<E extends Point2D> {
 	 * get y2
 	 * @return
 	 */
-	public int getY2() {
+	public double getY2() {
 		return y2;
 	}
 
@@ -103,71 +124,568 @@ public class PointQuadtree<E extends Point2D> {
 	/**
 	 * Inserts the point into the tree with its own proper
 	 * region corner coordinates, at its proper local
-	 * variable (c1, c2, c3, or c4)
-	 * @param p2
+	 * variable (c1, c2, c3, or c4).
+	 * Every point has to lie within the tree's region, as the queries count on each
+	 * subtree's points being inside its region (e.g., to take in a whole region at once).
+	 * @param p2	the point, within the region
 	 */
 	public void insert(E p2) {
-		int quadrant = findQuadrant(p2); //calls findQuadrant to easily store quadrant
-		PointQuadtree<E> child = getChild(quadrant);
+		if (!regionContains(p2.getX(), p2.getY())) throw new IllegalArgumentException("point "+p2+" is outside the tree's region");
+		PointQuadtree<E> node = this;
+		while (true) {
+			node.count++;
+			int quadrant = node.findQuadrant(p2.getX(), p2.getY()); //calls findQuadrant to easily store quadrant
+			PointQuadtree<E> child = node.getChild(quadrant);
 
-		if (child != null){
+			if (child == null) {
+				double[] region = node.childRegion(quadrant);
+				node.setChild(quadrant, new PointQuadtree<E>(p2, region[0], region[1], region[2], region[3]));
+				return;
+			}
 			// if this element's quadrant already has a child, insert new point into it
-			child.insert(p2);
+			node = child;
+		}
+	}
+
+	/**
+	 * Finds the corners of the region for a child at the given quadrant
+	 * @param quadrant	1 through 4
+	 * @return			{x1, y1, x2, y2} of the child's region
+	 */
+	private double[] childRegion(int quadrant) {
+		return childRegion(quadrant, px, py, x1, y1, x2, y2);
+	}
+
+	/**
+	 * Finds the corners of the region for a child at the given quadrant of a region split at (px,py);
+	 * also used by the other point quadtrees, so they all split regions the same way
+	 * @param quadrant	1 through 4
+	 * @return			{x1, y1, x2, y2} of the child's region
+	 */
+	static double[] childRegion(int quadrant, double px, double py, double x1, double y1, double x2, double y2) {
+		double newX1, newY1, newX2, newY2;
+
+		//update corner coordinates to the new region boundaries; they're exact (not rounded),
+		//so that the regions stay tight however fine the coordinates
+		newX1 = (quadrant == 2 || quadrant == 3) ? x1 : px;
+		newY1 = (quadrant == 1 || quadrant == 2) ? y1 : py;
+		newX2 = (quadrant == 1 || quadrant == 4) ? x2 : px;
+		newY2 = (quadrant == 3 || quadrant == 4) ? y2 : py;
+
+		return new double[] { newX1, newY1, newX2, newY2 };
+	}
+
+	/**
+	 * Sets the child at the given quadrant, 1-4
+	 * @param quadrant	1 through 4
+	 * @param child		new child (or null to clear it)
+	 */
+	private void setChild(int quadrant, PointQuadtree<E> child) {
+		if (child != null) child.parent = this;
+		if (quadrant == 1){
+			c1 = child;
+		} else if (quadrant == 2) {
+			c2 = child;
+		} else if (quadrant == 3) {
+			c3 = child;
 		} else {
-			double newX1, newY1, newX2, newY2;
-
-			//update corner coordinates to the new region boundaries
-			newX1 = (quadrant == 2 || quadrant == 3) ? x1 : point.getX();
-			newY1 = (quadrant == 1 || quadrant == 2) ? y1 : point.getY();
-			newX2 = (quadrant == 1 || quadrant == 4) ? x2 : point.getX();
-			newY2 = (quadrant == 3 || quadrant == 4) ? y2 : point.getY();
-
-			PointQuadtree<E> newChild = new PointQuadtree<E>(p2, (int) newX1, (int)newY1, (int)newX2, (int)newY2);
-
-			// set new quadtree in the appropriate quadrant
-			if (quadrant == 1){
-				c1 = newChild;
-			} else if (quadrant == 2) {
-				c2 = newChild;
-			} else if (quadrant == 3) {
-				c3 = newChild;
-			} else {
-				c4 = newChild;
-			}
+			c4 = child;
 		}
 	}
 
 	/**
-	 * finds which region quadrant, with respect to local point,
+	 * finds which region quadrant, with respect to where the local point was placed,
 	 * a new point will fall into. Extends each quadrant by one unit
 	 * in the counterclockwise direction (to account for when new
 	 * point lies on same vertical or horizontal).
-	 * @param p2
+	 * @param x		new point x coord
+	 * @param y		new point y coord
 	 * @return		int corresponding to the quadrant the point is in
 	 */
-	private int findQuadrant(E p2){
-		if (p2.getX() >= point.getX() && p2.getY() < point.getY()){
+	private int findQuadrant(double x, double y){
+		return findQuadrant(px, py, x, y);
+	}
+
+	/**
+	 * Which quadrant of (px,py) a position falls into, as findQuadrant above;
+	 * also used by the other point quadtrees, so they all put points in the same quadrants
+	 * @return		1 through 4
+	 */
+	static int findQuadrant(double px, double py, double x, double y) {
+		if (x >= px && y < py){
 			return 1;
-		} else if (p2.getX() < point.getX() && p2.getY() <= point.getY()) {
+		} else if (x < px && y <= py) {
 			return 2;
-		} else if (p2.getX() <= point.getX() && p2.getY() > point.getY())  {
+		} else if (x <= px && y > py)  {
 			return 3;
 		} else {
 			return 4;
 		}
 	}
-	
+
+	/**
+	 * Builds a tree holding all the points at once, anchoring each region at the point nearest
+	 * the median x and y of the points in it. Unlike inserting one at a time, the shape doesn't
+	 * depend on the order of the list, so the depth stays around log4(n) even for sorted input.
+	 * @param points	points to put in the tree (at least one, all within the region)
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @return			the tree
+	 */
+	public static <E extends Point2D> PointQuadtree<E> build(List<E> points, double x1, double y1, double x2, double y2) {
+		return build(points, x1, y1, x2, y2, false);
+	}
+
+	/**
+	 * Like build, optionally building the quadrants of large regions in parallel (fork/join)
+	 * @param parallel	whether to split the work across the common ForkJoinPool
+	 */
+	public static <E extends Point2D> PointQuadtree<E> build(List<E> points, double x1, double y1, double x2, double y2, boolean parallel) {
+		if (points.isEmpty()) throw new IllegalArgumentException("can't build a quadtree without any points");
+		for (E p : points) {
+			if (!Geometry.pointInRectangle(p.getX(), p.getY(), x1, y1, x2, y2)) throw new IllegalArgumentException("point "+p+" is outside the tree's region");
+		}
+		if (parallel && points.size() >= parallelThreshold) {
+			return ForkJoinPool.commonPool().invoke(new BuildTask<E>(points, x1, y1, x2, y2, 0));
+		}
+		return buildHelper(points, x1, y1, x2, y2);
+	}
+
+	/**
+	 * The points still to be made into a subtree, filling the given child slot
+	 */
+	private static class Pending<E extends Point2D> {
+		List<E> points;
+		PointQuadtree<E> parent;	// node to hang the subtree from
+		int quadrant;				// and at which child
+
+		Pending(List<E> points, PointQuadtree<E> parent, int quadrant) {
+			this.points = points;
+			this.parent = parent;
+			this.quadrant = quadrant;
+		}
+
+		/**
+		 * Makes the subtree's root, leaving its children to be built
+		 * @param todo		where to push them
+		 */
+		void build(Deque<Pending<E>> todo) {
+			double[] region = parent.childRegion(quadrant);
+			PointQuadtree<E> node = new PointQuadtree<E>(medianPoint(points), region[0], region[1], region[2], region[3]);
+			parent.setChild(quadrant, node);
+			node.buildChildren(points, todo);
+		}
+	}
+
+	/**
+	 * Builds the (sub)tree for the points in the region, a node at a time off an explicit work stack,
+	 * so that however deep the tree comes out, building it can't overflow the call stack
+	 * @return		the tree, or null if there are no points
+	 */
+	private static <E extends Point2D> PointQuadtree<E> buildHelper(List<E> points, double x1, double y1, double x2, double y2) {
+		if (points.isEmpty()) return null;
+		PointQuadtree<E> tree = new PointQuadtree<E>(medianPoint(points), x1, y1, x2, y2);
+		Deque<Pending<E>> todo = new ArrayDeque<Pending<E>>();
+		tree.buildChildren(points, todo);
+		while (!todo.isEmpty()) todo.pop().build(todo);
+		return tree;
+	}
+
+	/**
+	 * Fork/join version of buildHelper, for big regions near the top of the tree
+	 */
+	private static class BuildTask<E extends Point2D> extends RecursiveTask<PointQuadtree<E>> {
+		private static final long serialVersionUID = 1L;
+		private List<E> points;
+		private double x1, y1, x2, y2;
+		private int level;			// how far down the tree
+
+		public BuildTask(List<E> points, double x1, double y1, double x2, double y2, int level) {
+			this.points = points;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.level = level;
+		}
+
+		@Override
+		protected PointQuadtree<E> compute() {
+			if (points.size() < parallelThreshold || level >= parallelLevels) return buildHelper(points, x1, y1, x2, y2);
+			PointQuadtree<E> tree = new PointQuadtree<E>(medianPoint(points), x1, y1, x2, y2);
+			Deque<Pending<E>> spans = new ArrayDeque<Pending<E>>();
+			tree.buildChildren(points, spans);
+			List<BuildTask<E>> tasks = new ArrayList<BuildTask<E>>();
+			for (Pending<E> span : spans) {
+				double[] region = span.parent.childRegion(span.quadrant);
+				tasks.add(new BuildTask<E>(span.points, region[0], region[1], region[2], region[3], level+1));
+			}
+			invokeAll(tasks);
+			int i = 0;
+			for (Pending<E> span : spans) span.parent.setChild(span.quadrant, tasks.get(i++).join());
+			return tree;
+		}
+	}
+
+	/**
+	 * Splits the points in this node's subtree (including its own) among its children, leaving each
+	 * non-empty quadrant's to be built. Points at the very same position as this node's all fall into
+	 * quadrant 4, and would each make another level of the tree; rather than finding that out a level at
+	 * a time (taking quadratic time for a pile of them), they're chained on directly, each the quadrant 4
+	 * child of the last, with the rest of quadrant 4 to be built below the end of the chain.
+	 * @param points	the points in the subtree
+	 * @param todo		where to push the quadrants to be built
+	 */
+	private void buildChildren(List<E> points, Deque<Pending<E>> todo) {
+		count = points.size();
+		List<List<E>> quadrants = partition(points);
+		List<E> same = quadrants.get(4), rest = quadrants.get(3);
+
+		PointQuadtree<E> last = this;
+		for (int i = 0; i < same.size(); i++) {
+			double[] region = last.childRegion(4);
+			PointQuadtree<E> node = new PointQuadtree<E>(same.get(i), region[0], region[1], region[2], region[3]);
+			node.count = same.size() - i + rest.size();
+			last.setChild(4, node);
+			last = node;
+		}
+
+		// last quadrant pushed first, so that quadrant 1 is built next
+		if (!rest.isEmpty()) todo.push(new Pending<E>(rest, last, 4));
+		for (int i = 3; i > 0; i--) {
+			if (!quadrants.get(i-1).isEmpty()) todo.push(new Pending<E>(quadrants.get(i-1), this, i));
+		}
+	}
+
 	/**
-	 * Finds the number of points in the quadtree (including its descendants)
+	 * Splits the points (other than this node's own) by which quadrant they fall into,
+	 * setting aside those at the same position as this node's (which would be in quadrant 4)
+	 * @param points	points to split
+	 * @return			lists of points for quadrants 1-4 (at indices 0-3), and at this node's position (at 4)
+	 */
+	private List<List<E>> partition(List<E> points) {
+		List<List<E>> quadrants = new ArrayList<List<E>>();
+		for (int i = 0; i < 5; i++) quadrants.add(new ArrayList<E>());
+		for (E p : points) {
+			if (p == point) continue;
+			double x = p.getX(), y = p.getY();
+			if (x == px && y == py) quadrants.get(4).add(p);
+			else quadrants.get(findQuadrant(x, y)-1).add(p);
+		}
+		return quadrants;
+	}
+
+	/**
+	 * Finds the point closest to the (separate) medians of the x and y coords
+	 * @param points	points to choose from (at least one)
+	 * @return			the chosen point
+	 */
+	private static <E extends Point2D> E medianPoint(List<E> points) {
+		int n = points.size();
+		double[] xs = new double[n], ys = new double[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = points.get(i).getX();
+			ys[i] = points.get(i).getY();
+		}
+		double mx = select(xs, n, n/2), my = select(ys, n, n/2);
+
+		E best = null;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (E p : points) {
+			double d = (p.getX()-mx)*(p.getX()-mx) + (p.getY()-my)*(p.getY()-my);
+			if (d < bestDist) {
+				best = p;
+				bestDist = d;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the k-th smallest of the first n values (quickselect), rearranging them along the way;
+	 * also used by ArrayQuadtree
+	 * @param a		values
+	 * @param n		how many of them to consider
+	 * @param k		0-based rank to find
+	 * @return		the k-th smallest value
+	 */
+	static double select(double[] a, int n, int k) {
+		int lo = 0, hi = n-1;
+		while (lo < hi) {
+			double pivot = a[(lo+hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (a[i] < pivot) i++;
+				while (a[j] > pivot) j--;
+				if (i <= j) {
+					double tmp = a[i]; a[i] = a[j]; a[j] = tmp;
+					i++; j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else break;
+		}
+		return a[k];
+	}
+
+	/**
+	 * Whether the position lies within this node's region
+	 * @param x		x coord
+	 * @param y		y coord
+	 */
+	private boolean regionContains(double x, double y) {
+		return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+	}
+
+	/**
+	 * Removes the point from the tree, looking for it at its current position.
+	 * The last remaining point can't be removed (the tree would be empty); just drop the tree instead.
+	 * @param p2	the point to remove
+	 * @return		true if the point was found and removed
+	 */
+	public boolean remove(E p2) {
+		return remove(p2, p2.getX(), p2.getY());
+	}
+
+	/**
+	 * Removes the point from the tree, looking for it at the given position
+	 * (e.g., where it was before it moved).
+	 * @param p2	the point to remove
+	 * @param x		x coord the point had when last placed or moved in the tree
+	 * @param y		y coord the point had when last placed or moved in the tree
+	 * @return		true if the point was found and removed; false if not, or if the points under it
+	 * 				would have to be reinserted and some have left the tree's region (then rebuild the tree)
+	 */
+	public boolean remove(E p2, double x, double y) {
+		if (point == p2 && isLeaf()) return false;
+		PointQuadtree<E> node = locate(p2, x, y);
+		if (node == null) return false;
+		return node.detach(this);
+	}
+
+	/**
+	 * Updates the tree after the point moved from (oldX,oldY) to its current position.
+	 * The point is only relocated if it has left its node's region; otherwise the tree is untouched.
+	 * @param p2	the point that moved
+	 * @param oldX	x coord the point had when last placed or moved in the tree
+	 * @param oldY	y coord the point had when last placed or moved in the tree
+	 * @return		true if the tree is up to date; false if the point couldn't be found or relocated
+	 * 				(e.g., it, or a point that has to be reinserted along with it, has left the tree's region),
+	 * 				in which case the tree should be rebuilt
+	 */
+	public boolean move(E p2, double oldX, double oldY) {
+		if (!regionContains(p2.getX(), p2.getY())) return false;
+		PointQuadtree<E> node = locate(p2, oldX, oldY);
+		// the point may already have been relocated to its current position, when an ancestor was detached
+		if (node == null) node = locate(p2, p2.getX(), p2.getY());
+		if (node == null) return false;
+		if (node.regionContains(p2.getX(), p2.getY())) return true;
+		if (!node.detach(this)) return false;
+		insert(p2);
+		return true;
+	}
+
+	/**
+	 * Finds the node holding the point, only descending into regions holding (x,y),
+	 * so the point is found in about depth steps
+	 * @param p2	the point to look for
+	 * @param x		x coord to look for the point at
+	 * @param y		y coord to look for the point at
+	 * @return		the node, or null if it's not there
+	 */
+	private PointQuadtree<E> locate(E p2, double x, double y) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(this);
+			while (stack.size() > base) {
+				PointQuadtree<E> node = pop(stack);
+				if (!node.regionContains(x, y)) continue;
+				if (node.point == p2) return node;
+				node.pushChildren(stack);
+			}
+			return null;
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Whether this node has no children
+	 */
+	private boolean isLeaf() {
+		return c1 == null && c2 == null && c3 == null && c4 == null;
+	}
+
+	/**
+	 * Takes this node's point out of the tree. A leaf is simply unlinked from its parent;
+	 * otherwise this node's region is rebuilt, in one go (as build does, so it comes out balanced), from the
+	 * rest of its subtree, with any points that have wandered out of the region reinserted from the root.
+	 * @param root		root of the whole tree
+	 * @return			true if detached; false (leaving the tree as it was) if some of the rest of the subtree
+	 * 					have wandered out of the root's region too, so there's nowhere to reinsert them
+	 */
+	private boolean detach(PointQuadtree<E> root) {
+		List<E> rest = new ArrayList<E>();
+		for (int i = 1; i < 5; i++) {
+			if (hasChild(i)) getChild(i).allPointsHelper(rest);
+		}
+		for (E p : rest) {
+			if (!root.regionContains(p.getX(), p.getY())) return false;
+		}
+
+		// take the whole subtree out of the ancestors' counts; whatever stays here is added back at the end
+		addToAncestors(-count);
+		List<E> inside = new ArrayList<E>(), outside = new ArrayList<E>();
+		for (E p : rest) {
+			if (regionContains(p.getX(), p.getY())) inside.add(p);
+			else outside.add(p);
+		}
+
+		// (the root always has some left inside, as the rest are all within its region)
+		PointQuadtree<E> rebuilt = buildHelper(inside, x1, y1, x2, y2);
+		if (rebuilt == null) {
+			// nothing left for this region; unlink it
+			for (int i = 1; i < 5; i++) {
+				if (parent.getChild(i) == this) parent.setChild(i, null);
+			}
+		} else {
+			// this node takes the rebuilt subtree's place (so the root stays the root)
+			point = rebuilt.point;
+			px = rebuilt.px; py = rebuilt.py;
+			count = rebuilt.count;
+			for (int i = 1; i < 5; i++) setChild(i, rebuilt.getChild(i));
+			addToAncestors(count);
+		}
+		for (E p : outside) root.insert(p);
+		return true;
+	}
+
+	/**
+	 * Adjusts the subtree counts of all this node's ancestors
+	 * @param delta		how many points were added (or, if negative, removed)
+	 */
+	private void addToAncestors(int delta) {
+		for (PointQuadtree<E> node = parent; node != null; node = node.parent) {
+			node.count += delta;
+		}
+	}
+
+	/**
+	 * Finds the number of points in the quadtree (including its descendants);
+	 * kept up to date by insert and remove, so it's constant time
 	 */
 	public int size() {
-		int sum = 1;
-		for (int i = 1; i < 5; i++){
-			if (getChild(i) != null) sum += getChild(i).size();
+		return count;
+	}
+
+	/**
+	 * How deep the deepest node is (the root being 0); walks the whole tree, a level at a time
+	 */
+	public int depth() {
+		int depth = -1;
+		List<PointQuadtree<E>> level = new ArrayList<PointQuadtree<E>>();
+		level.add(this);
+		while (!level.isEmpty()) {
+			depth++;
+			List<PointQuadtree<E>> next = new ArrayList<PointQuadtree<E>>();
+			for (PointQuadtree<E> node : level) {
+				for (int i = 1; i < 5; i++) {
+					if (node.hasChild(i)) next.add(node.getChild(i));
+				}
+			}
+			level = next;
+		}
+		return depth;
+	}
+
+	/**
+	 * Counts the points within the rectangle. A region that lies entirely inside the rectangle
+	 * contributes its whole subtree count without being walked; that relies on every point lying within
+	 * its node's region, which insert and build see to (and move, for points that have moved since).
+	 * @param rx1	rectangle min x
+	 * @param ry1	rectangle min y
+	 * @param rx2	rectangle max x
+	 * @param ry2	rectangle max y
+	 * @return		how many points are in the rectangle
+	 */
+	public int countInRectangle(double rx1, double ry1, double rx2, double ry2) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		int sum = 0;
+		stack.push(this);
+		while (stack.size() > base) {
+			PointQuadtree<E> node = pop(stack);
+			if (!Geometry.rectanglesIntersect(node.x1, node.y1, node.x2, node.y2, rx1, ry1, rx2, ry2)) continue;
+			if (Geometry.rectangleInRectangle(node.x1, node.y1, node.x2, node.y2, rx1, ry1, rx2, ry2)) {
+				sum += node.count;
+				continue;
+			}
+			if (Geometry.pointInRectangle(node.point.getX(), node.point.getY(), rx1, ry1, rx2, ry2)) sum++;
+			node.pushChildren(stack);
 		}
 		return sum;
 	}
 	
+	/**
+	 * Uses the quadtree to find all points within the rectangle (edges included)
+	 * @param rx1	rectangle min x
+	 * @param ry1	rectangle min y
+	 * @param rx2	rectangle max x
+	 * @param ry2	rectangle max y
+	 * @return		the points in the rectangle
+	 */
+	public List<E> findInRectangle(double rx1, double ry1, double rx2, double ry2) {
+		List<E> list = new ArrayList<>();
+		findInRectangle(rx1, ry1, rx2, ry2, list::add);
+		return list;
+	}
+
+	/**
+	 * Like findInRectangle, but hands each point in the rectangle to the sink rather than building a list.
+	 * Regions entirely inside the rectangle are handed over whole, without testing their points.
+	 * @param rx1	rectangle min x
+	 * @param ry1	rectangle min y
+	 * @param rx2	rectangle max x
+	 * @param ry2	rectangle max y
+	 * @param sink	called with each point in the rectangle
+	 */
+	public void findInRectangle(double rx1, double ry1, double rx2, double ry2, Consumer<? super E> sink) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(this);
+			while (stack.size() > base) {
+				PointQuadtree<E> node = pop(stack);
+				if (!Geometry.rectanglesIntersect(node.x1, node.y1, node.x2, node.y2, rx1, ry1, rx2, ry2)) continue;
+				if (Geometry.rectangleInRectangle(node.x1, node.y1, node.x2, node.y2, rx1, ry1, rx2, ry2)) {
+					node.emitAll(stack, sink);
+					continue;
+				}
+				if (Geometry.pointInRectangle(node.point.getX(), node.point.getY(), rx1, ry1, rx2, ry2)) sink.accept(node.point);
+				node.pushChildren(stack);
+			}
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Hands every point in this subtree to the sink, using the stack above where it is now
+	 * (leaving the stack as it was)
+	 */
+	private void emitAll(NodeStack stack, Consumer<? super E> sink) {
+		int base = stack.size();
+		stack.push(this);
+		while (stack.size() > base) {
+			PointQuadtree<E> node = pop(stack);
+			sink.accept(node.point);
+			node.pushChildren(stack);
+		}
+	}
+
 	/**
 	 * Builds a list of all the points in the quadtree (including its descendants).
 	 * Uses an accumulator that's built up by allPointsHelper.
@@ -180,15 +698,17 @@ public class PointQuadtree<E extends Point2D> {
 	}
 
 	/**
-	 * adds point to accumulator, and if there's a child recurse on it
+	 * adds each point to accumulator, parents before children, quadrants in order
 	 * @param list
 	 */
 	private void allPointsHelper(List<E> list){
-		list.add(point);
-		for (int i = 1; i < 5; i++){
-			if (hasChild(i)){
-				getChild(i).allPointsHelper(list);
-			}
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(this);
+		while (stack.size() > base) {
+			PointQuadtree<E> node = pop(stack);
+			list.add(node.point);
+			node.pushChildren(stack);
 		}
 	}
 
@@ -201,27 +721,370 @@ public class PointQuadtree<E extends Point2D> {
 	 */
 	public List<E> findInCircle(double cx, double cy, double cr) {
 		ArrayList<E> list = new ArrayList<>();
-		findInCircleHelper(list, cx, cy, cr);
+		findInCircle(cx, cy, cr, list);
 		return list;
 	}
 
 	/**
-	 * if circle overlaps w/ rectangle, add point or recursively move to children until points added to accumulator
-	 * @param list	list of existing found points
+	 * Like findInCircle, but adds the points to the caller's list (which can be cleared and reused)
+	 * @param cx		circle center x
+	 * @param cy		circle center y
+	 * @param cr		circle radius
+	 * @param result	list to add the points in the circle to
+	 */
+	public void findInCircle(double cx, double cy, double cr, List<? super E> result) {
+		findInCircleHelper(result::add, cx, cy, cr, null);
+	}
+
+	/**
+	 * Like findInCircle, but hands each point in the circle to the sink rather than building a list
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		findInCircleHelper(sink, cx, cy, cr, null);
+	}
+
+	/**
+	 * Like findInCircle with a sink, also keeping track of how much of the tree the query had to look at
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 * @param stats	added to with this query's work
+	 * @return		stats
+	 */
+	public QueryStats findInCircle(double cx, double cy, double cr, Consumer<? super E> sink, QueryStats stats) {
+		findInCircleHelper(sink, cx, cy, cr, stats);
+		return stats;
+	}
+
+	/**
+	 * for each region the circle overlaps, hand over its point if it's in the circle, and move on to its children
+	 * @param sink	takes the found points
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param stats	where to count the work done (null not to)
+	 */
+	private void findInCircleHelper(Consumer<? super E> sink, double cx, double cy, double cr, QueryStats stats){
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(this);
+			while (stack.size() > base) {
+				PointQuadtree<E> node = pop(stack);
+				if (stats != null) stats.nodesVisited++;
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+					if (stats != null) stats.nodesPruned++;
+					continue;
+				}
+				// a region inside the circle has all its points inside too, so no need to test them
+				if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+					if (stats != null) stats.nodesContained++;
+					node.emitAll(stack, sink);
+					continue;
+				}
+				//if the current point is in the circle give it to the sink
+				if (stats != null) stats.pointsTested++;
+				if (Geometry.pointInCircle(node.point.getX(), node.point.getY(), cx, cy, cr)) sink.accept(node.point);
+				node.pushChildren(stack);
+			}
+		}
+		finally {
+			// in case the sink threw
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Counts the points within the circle, without collecting them
 	 * @param cx	circle center x
 	 * @param cy	circle center y
 	 * @param cr	circle radius
+	 * @return		how many points are in the circle
 	 */
-	private void findInCircleHelper(List<E> list, double cx, double cy, double cr){
-		if (Geometry.circleIntersectsRectangle(cx, cy, cr, x1, y1, x2, y2)) {
-			//if the current point is in the circle add it to the accumulator
-			if (Geometry.pointInCircle(point.getX(), point.getY(), cx, cy, cr)) list.add(point);
-			//iterate through all quadrants
-			for (int i = 1; i < 5; i++){
-				if (!hasChild(i)) continue; //ignore if child doesn't exist
-				getChild(i).findInCircleHelper(list, cx, cy, cr);
+	public int countInCircle(double cx, double cy, double cr) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		int count = 0;
+		stack.push(this);
+		while (stack.size() > base) {
+			PointQuadtree<E> node = pop(stack);
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+			if (Geometry.rectangleInCircle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) {
+				count += node.count;
+				continue;
 			}
+			if (Geometry.pointInCircle(node.point.getX(), node.point.getY(), cx, cy, cr)) count++;
+			node.pushChildren(stack);
 		}
+		return count;
+	}
+
+	/**
+	 * Whether any point other than the excluded one is within the circle; stops at the first found
+	 * (e.g., to see if a blob is touching anybody other than itself)
+	 * @param cx		circle center x
+	 * @param cy		circle center y
+	 * @param cr		circle radius
+	 * @param exclude	point to ignore (may be null)
+	 * @return			true if some other point is in the circle
+	 */
+	public boolean existsInCircle(double cx, double cy, double cr, E exclude) {
+		return anyInCircle(cx, cy, cr, p -> p != exclude);
+	}
+
+	/**
+	 * Whether any point within the circle passes the test; stops at the first one that does
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param test	what the point has to pass
+	 * @return		true if some point in the circle passes
+	 */
+	public boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(this);
+			while (stack.size() > base) {
+				PointQuadtree<E> node = pop(stack);
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, node.x1, node.y1, node.x2, node.y2)) continue;
+				if (Geometry.pointInCircle(node.point.getX(), node.point.getY(), cx, cy, cr) && test.test(node.point)) return true;
+				node.pushChildren(stack);
+			}
+			return false;
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * The point closest to the position
+	 * @param x		x coord
+	 * @param y		y coord
+	 * @return		the nearest point (ties broken arbitrarily)
+	 */
+	public E nearest(double x, double y) {
+		// kNearest with k=1, just keeping the one best point rather than a queue of them
+		E best = null;
+		double bestD2 = Double.POSITIVE_INFINITY;
+		PriorityQueue<Ranked> regions = new PriorityQueue<>((a, b) -> Double.compare(a.dist2, b.dist2));
+		regions.add(new Ranked(this, Geometry.pointRectangleDistanceSquared(x, y, x1, y1, x2, y2)));
+		while (!regions.isEmpty()) {
+			Ranked region = regions.poll();
+			if (region.dist2 >= bestD2) break;
+			@SuppressWarnings("unchecked")
+			PointQuadtree<E> node = (PointQuadtree<E>)region.item;
+
+			double dx = node.point.getX()-x, dy = node.point.getY()-y;
+			if (dx*dx + dy*dy < bestD2) {
+				best = node.point;
+				bestD2 = dx*dx + dy*dy;
+			}
+			for (int q = 1; q < 5; q++) {
+				PointQuadtree<E> child = node.getChild(q);
+				if (child == null) continue;
+				double cd2 = Geometry.pointRectangleDistanceSquared(x, y, child.x1, child.y1, child.x2, child.y2);
+				if (cd2 < bestD2) regions.add(new Ranked(child, cd2));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The k points closest to the position, found best-first: regions are visited in order of
+	 * how close they come to the position, stopping once the nearest remaining region is
+	 * farther away than the kth best point found so far
+	 * @param x		x coord
+	 * @param y		y coord
+	 * @param k		how many points to find
+	 * @return		the k nearest points (or all of them, if there are fewer), nearest first
+	 */
+	public List<E> kNearest(double x, double y, int k) {
+		List<E> result = new ArrayList<>();
+		if (k <= 0) return result;
+
+		// regions still to look at, closest first; the best points so far, farthest first (so it's the one to replace)
+		PriorityQueue<Ranked> regions = new PriorityQueue<>((a, b) -> Double.compare(a.dist2, b.dist2));
+		PriorityQueue<Ranked> best = new PriorityQueue<>((a, b) -> Double.compare(b.dist2, a.dist2));
+		regions.add(new Ranked(this, Geometry.pointRectangleDistanceSquared(x, y, x1, y1, x2, y2)));
+		while (!regions.isEmpty()) {
+			Ranked region = regions.poll();
+			if (best.size() == k && region.dist2 >= best.peek().dist2) break; // nothing left can be closer
+			@SuppressWarnings("unchecked")
+			PointQuadtree<E> node = (PointQuadtree<E>)region.item;
+
+			double dx = node.point.getX()-x, dy = node.point.getY()-y;
+			double d2 = dx*dx + dy*dy;
+			if (best.size() < k) {
+				best.add(new Ranked(node.point, d2));
+			} else if (d2 < best.peek().dist2) {
+				best.poll();
+				best.add(new Ranked(node.point, d2));
+			}
+
+			for (int q = 1; q < 5; q++) {
+				PointQuadtree<E> child = node.getChild(q);
+				if (child == null) continue;
+				double cd2 = Geometry.pointRectangleDistanceSquared(x, y, child.x1, child.y1, child.x2, child.y2);
+				if (best.size() < k || cd2 < best.peek().dist2) regions.add(new Ranked(child, cd2));
+			}
+		}
+
+		// the best come out farthest first
+		while (!best.isEmpty()) {
+			@SuppressWarnings("unchecked")
+			E p = (E)best.poll().item;
+			result.add(p);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * A node or point, and its squared distance from a nearest-neighbor query
+	 */
+	private static class Ranked {
+		Object item;
+		double dist2;
+
+		Ranked(Object item, double dist2) {
+			this.item = item;
+			this.dist2 = dist2;
+		}
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch (distance at most the sum of their radii),
+	 * in one pass over the tree, reporting each pair exactly once
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		double maxR = 0;
+		for (E p : allPoints()) maxR = Math.max(maxR, radius.applyAsDouble(p));
+
+		// The stack holds pairs of subtrees still to be handled: (a, null) for the pairs within a,
+		// and (a, b) for the pairs with one point in a and the other in b.
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		try {
+			stack.push(null);
+			stack.push(this);
+			while (stack.size() > base) {
+				PointQuadtree<E> a = pop(stack), b = pop(stack);
+				if (b == null) a.pairsWithin(stack, radius, maxR, pairs);
+				else a.pairsAcross(b, stack, radius, maxR, pairs);
+			}
+		}
+		finally {
+			stack.truncate(base);
+		}
+	}
+
+	/**
+	 * Pairs within this subtree: this node's point with its descendants; then
+	 * the pairs within each child and the pairs across each two children are pushed for later
+	 * @param stack		pairs of subtrees still to be handled
+	 * @param radius	radius of each point's circle
+	 * @param maxR		largest radius of any point
+	 * @param pairs		called with each pair found
+	 */
+	private void pairsWithin(NodeStack stack, ToDoubleFunction<? super E> radius, double maxR, BiConsumer<? super E, ? super E> pairs) {
+		double r = radius.applyAsDouble(point);
+		for (int i = 1; i < 5; i++) {
+			if (hasChild(i)) getChild(i).pairsWithPoint(point, r, radius, maxR, pairs);
+		}
+		for (int i = 4; i > 0; i--) {
+			if (!hasChild(i)) continue;
+			for (int j = 4; j > i; j--) {
+				if (hasChild(j)) {
+					stack.push(getChild(j));
+					stack.push(getChild(i));
+				}
+			}
+			stack.push(null);
+			stack.push(getChild(i));
+		}
+	}
+
+	/**
+	 * Pairs with one point in this subtree and the other in the other (disjoint) subtree.
+	 * Skipped altogether when the two regions are too far apart for any circles to touch.
+	 * @param other		the other subtree
+	 * @param stack		pairs of subtrees still to be handled
+	 * @param radius	radius of each point's circle
+	 * @param maxR		largest radius of any point
+	 * @param pairs		called with each pair found
+	 */
+	private void pairsAcross(PointQuadtree<E> other, NodeStack stack, ToDoubleFunction<? super E> radius, double maxR, BiConsumer<? super E, ? super E> pairs) {
+		if (!Geometry.rectanglesWithin(x1, y1, x2, y2, other.x1, other.y1, other.x2, other.y2, 2*maxR)) return;
+
+		double r = radius.applyAsDouble(point), otherR = radius.applyAsDouble(other.point);
+		if (Geometry.pointInCircle(other.point.getX(), other.point.getY(), point.getX(), point.getY(), r+otherR)) {
+			pairs.accept(point, other.point);
+		}
+		for (int i = 1; i < 5; i++) {
+			if (other.hasChild(i)) other.getChild(i).pairsWithPoint(point, r, radius, maxR, pairs);
+			if (hasChild(i)) getChild(i).pairsWithPoint(other.point, otherR, radius, maxR, pairs);
+		}
+		for (int i = 4; i > 0; i--) {
+			if (!hasChild(i)) continue;
+			for (int j = 4; j > 0; j--) {
+				if (other.hasChild(j)) {
+					stack.push(other.getChild(j));
+					stack.push(getChild(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pairs of the given point with the points in this subtree; like findInCircleHelper,
+	 * with the circle grown by the largest radius so that it can't miss a bigger point
+	 * @param p			the point
+	 * @param r			its radius
+	 * @param radius	radius of each point's circle
+	 * @param maxR		largest radius of any point
+	 * @param pairs		called with each pair found
+	 */
+	private void pairsWithPoint(E p, double r, ToDoubleFunction<? super E> radius, double maxR, BiConsumer<? super E, ? super E> pairs) {
+		NodeStack stack = NodeStack.current();
+		int base = stack.size();
+		stack.push(this);
+		while (stack.size() > base) {
+			PointQuadtree<E> node = pop(stack);
+			if (!Geometry.circleIntersectsRectangle(p.getX(), p.getY(), r+maxR, node.x1, node.y1, node.x2, node.y2)) continue;
+			if (Geometry.pointInCircle(node.point.getX(), node.point.getY(), p.getX(), p.getY(), r+radius.applyAsDouble(node.point))) {
+				pairs.accept(p, node.point);
+			}
+			node.pushChildren(stack);
+		}
+	}
+
+	/**
+	 * Pushes the children, last quadrant first, so that they're popped in order 1-4
+	 * @param stack		where to push them
+	 */
+	private void pushChildren(NodeStack stack) {
+		if (c4 != null) stack.push(c4);
+		if (c3 != null) stack.push(c3);
+		if (c2 != null) stack.push(c2);
+		if (c1 != null) stack.push(c1);
+	}
+
+	/**
+	 * Pops a node pushed by this tree's traversals
+	 * @param stack		where to pop it from
+	 */
+	@SuppressWarnings("unchecked")
+	private PointQuadtree<E> pop(NodeStack stack) {
+		return (PointQuadtree<E>) stack.pop();
 	}
 
 	/**
@@ -252,5 +1115,63 @@ public class PointQuadtree<E extends Point2D> {
 		System.out.println("Size of dots list: "+dotsInOrder.size()+", Size of tree: "+tree.size());
 		System.out.println("Dot's in order of proper tree to array order: "+dotsInOrder);
 		System.out.println("Tree to array list dot order: "+tree.allPoints());
+
+		System.out.println("In upper half: "+tree.countInRectangle(0, 0, 800, 300)+", lower left quarter: "+tree.countInRectangle(0, 300, 400, 600));
+
+		// the allocation-free queries should agree with findInCircle
+		System.out.println("Within 150 of center: "+tree.findInCircle(300, 400, 150)+", count: "+tree.countInCircle(300, 400, 150)
+				+", any besides center: "+tree.existsInCircle(300, 400, 150, centerDot));
+		// the stats should match Geometry's counts for the same query
+		Geometry.resetNumCircleRectangleTests();
+		Geometry.resetNumInCircleTests();
+		QueryStats stats = tree.findInCircle(300, 400, 150, d -> {}, new QueryStats());
+		System.out.println("Query work: "+stats+"; Geometry counted "+Geometry.getNumCircleRectangleTests()
+				+" circle-rectangle, "+Geometry.getNumInCircleTests()+" in circle");
+
+		// nearest and kNearest should find points as close as sorting them all by distance does: on random points
+		// and on a grid (where many are tied), from inside and outside the region, and for k beyond the size
+		Random random = new Random(0);
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < 300; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		for (int x = 50; x < 800; x += 100) {
+			for (int y = 50; y < 600; y += 100) dots.add(new Dot(x, y));
+		}
+		PointQuadtree<Dot> nearTree = build(dots, 0, 0, 800, 600);
+		// a grid point, halfway between grid points, the corner, outside the region, then random (some outside)
+		List<double[]> queries = new ArrayList<>(Arrays.asList(new double[] { 450, 350 }, new double[] { 100, 100 },
+				new double[] { 0, 0 }, new double[] { -100, 300 }, new double[] { 900, 700 }, new double[] { 400, -1000 }));
+		for (int i = 0; i < 40; i++) queries.add(new double[] { 1000*random.nextDouble() - 100, 800*random.nextDouble() - 100 });
+		int checked = 0, wrong = 0;
+		for (double[] query : queries) {
+			double x = query[0], y = query[1];
+			List<Dot> sorted = new ArrayList<>(dots);
+			sorted.sort((a, b) -> Double.compare(distanceSquared(a, x, y), distanceSquared(b, x, y)));
+			checked++;
+			if (distanceSquared(nearTree.nearest(x, y), x, y) != distanceSquared(sorted.get(0), x, y)) wrong++;
+			for (int k : new int[] { 0, 1, 2, 7, 50, dots.size(), dots.size() + 10 }) {
+				List<Dot> found = nearTree.kNearest(x, y, k);
+				checked++;
+				if (found.size() != Math.min(k, dots.size()) || new HashSet<>(found).size() != found.size()) {
+					wrong++;
+					continue;
+				}
+				// the same distances, in order (tied points can come back in either order, or either be left out)
+				for (int j = 0; j < found.size(); j++) {
+					if (distanceSquared(found.get(j), x, y) != distanceSquared(sorted.get(j), x, y)) {
+						wrong++;
+						break;
+					}
+				}
+			}
+		}
+		System.out.println("Nearest vs sorting by distance: "+checked+" queries, "+(wrong == 0 ? "all agree" : wrong+" disagree"));
+	}
+
+	/**
+	 * Squared distance from the point to the position
+	 */
+	private static double distanceSquared(Point2D p, double x, double y) {
+		double dx = p.getX()-x, dy = p.getY()-y;
+		return dx*dx + dy*dy;
 	}
 }
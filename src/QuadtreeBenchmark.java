@@ -0,0 +1,406 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Rough timings for PointQuadtree, run from main.
+ * Compares the tree's own (iterative, or cached for size) traversals against straightforward recursive ones,
+ * on uniformly scattered points and on a diagonal like DotTreeGUI's test 3, inserted in order,
+ * which makes the tree a chain as deep as the number of points.
+ *
+ * With "suite" as the first argument, instead times the main operations (insert, findInCircle at several radii,
+ * allPoints, finding colliders) on uniform, clustered and diagonal points, at 10^3 points and up by factors of 10:
+ *   java QuadtreeBenchmark suite [max points, default 10^6] [distributions, default uniform clustered diagonal]
+ * Each line is name, distribution, number of points, time per run, so runs can be compared line by line.
+ */
+public class QuadtreeBenchmark {
+	private static final int width=800, height=600;		// size of the universe
+	private static long checksum = 0;					// results are added in so the work can't be optimized away
+
+	/**
+	 * Times the operation, after some warm-up runs, and prints the time per run
+	 * @param name	what's being timed
+	 * @param reps	how many times to run it (and also to warm up)
+	 * @param op	the operation
+	 */
+	private static void time(String name, int reps, Runnable op) {
+		try {
+			for (int i = 0; i < reps; i++) op.run();
+			long start = System.nanoTime();
+			for (int i = 0; i < reps; i++) op.run();
+			long perRun = (System.nanoTime() - start) / reps;
+			System.out.println(name+": "+perRun/1000+" us");
+		}
+		catch (StackOverflowError e) {
+			System.out.println(name+": stack overflow");
+		}
+	}
+
+	/**
+	 * Points scattered uniformly over the universe
+	 */
+	private static List<Dot> uniform(int n, Random random) {
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < n; i++) dots.add(new Dot(width*random.nextDouble(), height*random.nextDouble()));
+		return dots;
+	}
+
+	/**
+	 * Points in a handful of gaussian clusters, as blobs tend to bunch up (kept within the universe)
+	 */
+	private static List<Dot> clustered(int n, Random random) {
+		double[] centers = new double[20];
+		for (int i = 0; i < centers.length; i += 2) {
+			centers[i] = width*random.nextDouble();
+			centers[i+1] = height*random.nextDouble();
+		}
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			int c = 2*random.nextInt(centers.length/2);
+			double x = Math.min(width, Math.max(0, centers[c] + 25*random.nextGaussian()));
+			double y = Math.min(height, Math.max(0, centers[c+1] + 25*random.nextGaussian()));
+			dots.add(new Dot(x, y));
+		}
+		return dots;
+	}
+
+	/**
+	 * Points along the diagonal, in order from the top left
+	 */
+	private static List<Dot> diagonal(int n) {
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < n; i++) dots.add(new Dot((double)width*i/n, (double)height*i/n));
+		return dots;
+	}
+
+	/**
+	 * Builds a tree by inserting the points one at a time, in order
+	 */
+	private static PointQuadtree<Dot> insertAll(List<Dot> dots) {
+		PointQuadtree<Dot> tree = new PointQuadtree<>(dots.get(0), 0, 0, width, height);
+		for (int i = 1; i < dots.size(); i++) tree.insert(dots.get(i));
+		return tree;
+	}
+
+	// Recursive versions, as PointQuadtree had them, for comparison
+
+	private static int recursiveSize(PointQuadtree<Dot> tree) {
+		int sum = 1;
+		for (int i = 1; i < 5; i++) {
+			if (tree.hasChild(i)) sum += recursiveSize(tree.getChild(i));
+		}
+		return sum;
+	}
+
+	private static void recursiveAllPoints(PointQuadtree<Dot> tree, List<Dot> list) {
+		list.add(tree.getPoint());
+		for (int i = 1; i < 5; i++) {
+			if (tree.hasChild(i)) recursiveAllPoints(tree.getChild(i), list);
+		}
+	}
+
+	private static void recursiveFindInCircle(PointQuadtree<Dot> tree, List<Dot> list, double cx, double cy, double cr) {
+		if (Geometry.circleIntersectsRectangle(cx, cy, cr, tree.getX1(), tree.getY1(), tree.getX2(), tree.getY2())) {
+			if (Geometry.pointInCircle(tree.getPoint().getX(), tree.getPoint().getY(), cx, cy, cr)) list.add(tree.getPoint());
+			for (int i = 1; i < 5; i++) {
+				if (tree.hasChild(i)) recursiveFindInCircle(tree.getChild(i), list, cx, cy, cr);
+			}
+		}
+	}
+
+	/**
+	 * Times the traversals, recursive and iterative, on the tree
+	 * @param label		what kind of tree it is
+	 * @param tree		the tree
+	 * @param reps		how many times to run each
+	 */
+	private static void compareTraversals(String label, PointQuadtree<Dot> tree, int reps) {
+		Random random = new Random(1);
+		double[] queries = new double[300];
+		for (int i = 0; i < queries.length; i += 3) {
+			queries[i] = width*random.nextDouble();
+			queries[i+1] = height*random.nextDouble();
+			queries[i+2] = 50*random.nextDouble();
+		}
+
+		System.out.println(label);
+		time("  size, recursive", reps, () -> checksum += recursiveSize(tree));
+		time("  size, cached", reps, () -> checksum += tree.size());
+		time("  allPoints, recursive", reps, () -> {
+			List<Dot> list = new ArrayList<>();
+			recursiveAllPoints(tree, list);
+			checksum += list.size();
+		});
+		time("  allPoints, iterative", reps, () -> checksum += tree.allPoints().size());
+		time("  100 x findInCircle, recursive", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				List<Dot> list = new ArrayList<>();
+				recursiveFindInCircle(tree, list, queries[i], queries[i+1], queries[i+2]);
+				checksum += list.size();
+			}
+		});
+		time("  100 x findInCircle, iterative", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				checksum += tree.findInCircle(queries[i], queries[i+1], queries[i+2]).size();
+			}
+		});
+	}
+
+	/**
+	 * Times building and querying the same points as a PointQuadtree, an ArrayQuadtree, a BucketQuadtree, and a MortonQuadtree
+	 * @param dots		the points
+	 * @param reps		how many times to run each
+	 */
+	private static void compareLayouts(List<Dot> dots, int reps) {
+		Random random = new Random(1);
+		double[] queries = new double[3000];
+		for (int i = 0; i < queries.length; i += 3) {
+			queries[i] = width*random.nextDouble();
+			queries[i+1] = height*random.nextDouble();
+			queries[i+2] = 20*random.nextDouble();
+		}
+		PointQuadtree<Dot> objects = PointQuadtree.build(dots, 0, 0, width, height);
+		ArrayQuadtree<Dot> arrays = ArrayQuadtree.build(dots, 0, 0, width, height);
+		BucketQuadtree<Dot> buckets = BucketQuadtree.build(dots, 0, 0, width, height, 8);
+		MortonQuadtree<Dot> morton = MortonQuadtree.build(dots);
+
+		System.out.println("node objects vs parallel arrays vs buckets vs Z-order, "+dots.size()+" points");
+		time("  build, PointQuadtree", reps, () -> checksum += PointQuadtree.build(dots, 0, 0, width, height).size());
+		time("  build, ArrayQuadtree", reps, () -> checksum += ArrayQuadtree.build(dots, 0, 0, width, height).size());
+		time("  build, BucketQuadtree", reps, () -> checksum += BucketQuadtree.build(dots, 0, 0, width, height, 8).size());
+		time("  rebuild, MortonQuadtree", reps, () -> {
+			morton.rebuild(dots);
+			checksum += morton.size();
+		});
+		time("  1000 x findInCircle, PointQuadtree", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				objects.findInCircle(queries[i], queries[i+1], queries[i+2], d -> checksum++);
+			}
+		});
+		time("  1000 x findInCircle, ArrayQuadtree", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				arrays.findInCircle(queries[i], queries[i+1], queries[i+2], d -> checksum++);
+			}
+		});
+		time("  1000 x findInCircle, BucketQuadtree", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				buckets.findInCircle(queries[i], queries[i+1], queries[i+2], d -> checksum++);
+			}
+		});
+		time("  1000 x findInCircle, MortonQuadtree", reps, () -> {
+			for (int i = 0; i < queries.length; i += 3) {
+				morton.findInCircle(queries[i], queries[i+1], queries[i+2], d -> checksum++);
+			}
+		});
+	}
+
+	/**
+	 * Like recursiveFindInCircle, optionally pruning against each region rounded outwards to whole numbers,
+	 * as PointQuadtree's int bounds used to be, so that exact and rounded bounds can be compared through
+	 * the same walk; counts the work as findInCircle does (it never takes a region whole, though)
+	 * @param round		whether to round the regions
+	 * @param stats		where to count the regions and points tested
+	 */
+	private static void boundedFindInCircle(PointQuadtree<Dot> tree, List<Dot> list, double cx, double cy, double cr,
+											boolean round, QueryStats stats) {
+		stats.nodesVisited++;
+		double x1 = tree.getX1(), y1 = tree.getY1(), x2 = tree.getX2(), y2 = tree.getY2();
+		if (round) {
+			x1 = Math.floor(x1); y1 = Math.floor(y1); x2 = Math.ceil(x2); y2 = Math.ceil(y2);
+		}
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1, y1, x2, y2)) {
+			stats.nodesPruned++;
+			return;
+		}
+		stats.pointsTested++;
+		if (Geometry.pointInCircle(tree.getPoint().getX(), tree.getPoint().getY(), cx, cy, cr)) list.add(tree.getPoint());
+		for (int i = 1; i < 5; i++) {
+			if (tree.hasChild(i)) boundedFindInCircle(tree.getChild(i), list, cx, cy, cr, round, stats);
+		}
+	}
+
+	/**
+	 * Compares how well circle queries prune with exact region bounds vs. bounds rounded to whole numbers,
+	 * on points scattered over a world only a few units across, so that most regions are smaller than a unit.
+	 * Both go through boundedFindInCircle, so they differ only in the rounding.
+	 * @param n		how many points
+	 * @param reps	how many times to time each
+	 */
+	private static void comparePrecision(int n, int reps) {
+		double w = 8, h = 6;
+		Random random = new Random(2);
+		List<Dot> dots = new ArrayList<>();
+		for (int i = 0; i < n; i++) dots.add(new Dot(w*random.nextDouble(), h*random.nextDouble()));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0, 0, w, h);
+		double[] queries = new double[3000];
+		for (int i = 0; i < queries.length; i += 3) {
+			queries[i] = w*random.nextDouble();
+			queries[i+1] = h*random.nextDouble();
+			queries[i+2] = 0.1*random.nextDouble();
+		}
+
+		System.out.println("exact vs. whole-number region bounds, "+n+" points in "+w+"x"+h+", 1000 queries");
+		for (boolean round : new boolean[] { false, true }) {
+			QueryStats stats = new QueryStats();
+			long found = 0;
+			for (int i = 0; i < queries.length; i += 3) {
+				List<Dot> list = new ArrayList<>();
+				boundedFindInCircle(tree, list, queries[i], queries[i+1], queries[i+2], round, stats);
+				found += list.size();
+			}
+			System.out.println("  "+(round ? "rounded" : "exact")+": regions tested "+stats.nodesVisited+", points tested "+stats.pointsTested+", found "+found);
+		}
+		for (boolean round : new boolean[] { false, true }) {
+			time("  1000 x findInCircle, "+(round ? "rounded" : "exact"), reps, () -> {
+				QueryStats stats = new QueryStats();
+				for (int i = 0; i < queries.length; i += 3) {
+					List<Dot> list = new ArrayList<>();
+					boundedFindInCircle(tree, list, queries[i], queries[i+1], queries[i+2], round, stats);
+					checksum += list.size();
+				}
+			});
+		}
+	}
+
+	/**
+	 * The k nearest points the way it had to be done without kNearest: grow a circle until it holds
+	 * at least k points, then sort those by distance
+	 */
+	private static List<Dot> nearestByGrowingCircle(PointQuadtree<Dot> tree, double x, double y, int k, double startR) {
+		double r = startR;
+		while (tree.countInCircle(x, y, r) < Math.min(k, tree.size())) r *= 2;
+		List<Dot> found = tree.findInCircle(x, y, r);
+		found.sort((a, b) -> Double.compare((a.getX()-x)*(a.getX()-x) + (a.getY()-y)*(a.getY()-y),
+				(b.getX()-x)*(b.getX()-x) + (b.getY()-y)*(b.getY()-y)));
+		return found.subList(0, Math.min(k, found.size()));
+	}
+
+	/**
+	 * Times best-first kNearest against growing a circle, for a few values of k, first checking that they find the same points
+	 * @param label		what kind of points they are
+	 * @param dots		the points
+	 * @param reps		how many times to run each
+	 */
+	private static void compareNearest(String label, List<Dot> dots, int reps) {
+		Random random = new Random(1);
+		double[] queries = new double[2000];
+		for (int i = 0; i < queries.length; i += 2) {
+			queries[i] = width*random.nextDouble();
+			queries[i+1] = height*random.nextDouble();
+		}
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0, 0, width, height);
+		// starting where a circle would hold about one point, as a caller who knew the density might
+		double startR = Math.sqrt((double)width*height/dots.size()/Math.PI);
+
+		System.out.println("nearest neighbors, "+label);
+		int disagree = 0;
+		for (int i = 0; i < queries.length; i += 2) {
+			double x = queries[i], y = queries[i+1];
+			if (!tree.kNearest(x, y, 1).equals(Collections.singletonList(tree.nearest(x, y)))) disagree++;
+			for (int k : new int[] { 1, 10, 100 }) {
+				if (!tree.kNearest(x, y, k).equals(nearestByGrowingCircle(tree, x, y, k, startR))) disagree++;
+			}
+		}
+		System.out.println("  best-first and growing circle "+(disagree == 0 ? "agree" : "disagree on "+disagree+" queries"));
+		time("  1000 x nearest, best-first", reps, () -> {
+			for (int i = 0; i < queries.length; i += 2) checksum += tree.nearest(queries[i], queries[i+1]).getX() > 0 ? 1 : 0;
+		});
+		for (int k : new int[] { 1, 10, 100 }) {
+			time("  1000 x kNearest("+k+"), best-first", reps, () -> {
+				for (int i = 0; i < queries.length; i += 2) checksum += tree.kNearest(queries[i], queries[i+1], k).size();
+			});
+			time("  1000 x kNearest("+k+"), growing circle", reps, () -> {
+				for (int i = 0; i < queries.length; i += 2) checksum += nearestByGrowingCircle(tree, queries[i], queries[i+1], k, startR).size();
+			});
+		}
+	}
+
+	/**
+	 * Points of the named distribution
+	 */
+	private static List<Dot> distribution(String name, int n, Random random) {
+		if (name.equals("uniform")) return uniform(n, random);
+		if (name.equals("clustered")) return clustered(n, random);
+		if (name.equals("diagonal")) return diagonal(n);
+		throw new IllegalArgumentException("unknown distribution "+name);
+	}
+
+	/**
+	 * Times the main operations on n points of the distribution.
+	 * Query radii are scaled to the density, so that a query finds about the same number of points whatever n is
+	 * (for the uniform distribution; more in clusters), and likewise the collision radius gives blobs a few neighbors.
+	 * @param name		which distribution
+	 * @param n			how many points
+	 */
+	private static void suite(String name, int n) {
+		Random random = new Random(n);
+		List<Dot> dots = distribution(name, n, random);
+		// the diagonal goes in in order, as in test 3, when that's small enough to finish; otherwise shuffled
+		List<Dot> inserted = new ArrayList<>(dots);
+		boolean shuffled = !name.equals("diagonal") || n > 10000;
+		if (shuffled) Collections.shuffle(inserted, random);
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0, 0, width, height);
+
+		int reps = Math.max(1, Math.min(20, 1000000 / n));
+		double spacing = Math.sqrt((double)width*height/n);	// typical distance between uniform points
+		double[] queries = new double[3000];
+		for (int i = 0; i < queries.length; i += 3) {
+			Dot d = dots.get(random.nextInt(n));	// centered where the points are
+			queries[i] = d.getX();
+			queries[i+1] = d.getY();
+		}
+		String suffix = ", "+name+", "+n;
+
+		time((shuffled ? "insert" : "insert in order")+suffix, reps, () -> checksum += insertAll(inserted).size());
+		time("build"+suffix, reps, () -> checksum += PointQuadtree.build(dots, 0, 0, width, height).size());
+		for (int k : new int[] { 1, 30, 1000 }) {
+			// radius of a circle holding about k uniform points
+			double r = spacing * Math.sqrt(k / Math.PI);
+			time("1000 x findInCircle ~"+k+suffix, reps, () -> {
+				for (int i = 0; i < queries.length; i += 3) {
+					tree.findInCircle(queries[i], queries[i+1], r, d -> checksum++);
+				}
+			});
+		}
+		time("allPoints"+suffix, reps, () -> checksum += tree.allPoints().size());
+		double blobR = spacing / 2;
+		time("colliders"+suffix, reps, () -> {
+			Set<Dot> colliders = new HashSet<>();
+			tree.findAllPairsWithin(d -> blobR, (d1, d2) -> {
+				colliders.add(d1);
+				colliders.add(d2);
+			});
+			checksum += colliders.size();
+		});
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(0);
+		Geometry.setCounting(false);	// time the tree, not the instrumentation
+
+		if (args.length > 0 && args[0].equals("suite")) {
+			int max = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+			String[] names = args.length > 2 ? java.util.Arrays.copyOfRange(args, 2, args.length)
+					: new String[] { "uniform", "clustered", "diagonal" };
+			for (String name : names) {
+				for (int n = 1000; n <= max; n *= 10) suite(name, n);
+			}
+			System.out.println("(checksum "+checksum+")");
+			return;
+		}
+
+		compareTraversals("uniform, 100000 points", insertAll(uniform(100000, random)), 20);
+		compareTraversals("diagonal chain, 5000 points", insertAll(diagonal(5000)), 20);
+		// deep enough that the recursive versions overflow a default-sized stack
+		compareTraversals("diagonal chain, 50000 points", insertAll(diagonal(50000)), 3);
+		compareLayouts(uniform(1000000, random), 5);
+		compareNearest("uniform, 100000 points", uniform(100000, random), 10);
+		compareNearest("clustered, 100000 points", clustered(100000, random), 10);
+		comparePrecision(100000, 3);
+
+		System.out.println("(checksum "+checksum+")");
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ * How much work a query did: how many nodes it looked at, how many of those it skipped along with
+ * their subtrees (because their regions missed the query) or took whole (because their regions lay
+ * entirely inside it), and how many points it tested.
+ * Handed to a query to fill in; it adds to the counts, so one can total up a series of queries.
+ * Not thread-safe; give each thread its own.
+ */
+public class QueryStats {
+	public long nodesVisited = 0;		// nodes whose region was tested against the query
+	public long nodesPruned = 0;		// visited nodes whose region missed, so their subtrees were skipped
+	public long nodesContained = 0;		// visited nodes whose region was inside, so their subtrees were taken untested
+	public long pointsTested = 0;		// points tested against the query
+
+	public void reset() {
+		nodesVisited = 0;
+		nodesPruned = 0;
+		nodesContained = 0;
+		pointsTested = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "visited "+nodesVisited+", pruned "+nodesPruned+", contained "+nodesContained+", tested "+pointsTested;
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Runs a CollisionWorld forward on a thread of its own, rather than on the GUI's event thread, so that how fast
+ * the simulation goes doesn't depend on how fast it's drawn (and vice versa).
+ *
+ * The world belongs to the simulation thread: anything else that wants to change it submits
+ * a command, which is run before the next step. What's drawn comes from snapshots: after each step,
+ * the positions are copied into the back buffer, which is then swapped to the front, so that a reader
+ * always sees one whole step while the next is being computed.
+ */
+public class Simulation {
+	/**
+	 * Where the blobs were, and which collided, as of one step
+	 */
+	public static class Snapshot {
+		public int size = 0;						// how many blobs (the arrays may be longer)
+		public double[] x = new double[0], y = new double[0], r = new double[0];
+		public boolean[] collided = new boolean[0];
+		public long step = 0;						// which step this is
+
+		/**
+		 * Copies the blobs' current state in, reusing the arrays when they're big enough
+		 */
+		private void fill(List<Blob> blobs, Set<Blob> colliders, long step) {
+			size = blobs.size();
+			if (x.length < size) {
+				int length = Math.max(size, 2*x.length);
+				x = new double[length]; y = new double[length]; r = new double[length];
+				collided = new boolean[length];
+			}
+			for (int i = 0; i < size; i++) {
+				Blob b = blobs.get(i);
+				x[i] = b.getX(); y[i] = b.getY(); r[i] = b.getR();
+				collided[i] = colliders != null && colliders.contains(b);
+			}
+			this.step = step;
+		}
+	}
+
+	private final CollisionWorld world;				// only touched on the simulation thread
+	private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();	// run before the next step
+	private final Object swapLock = new Object();	// held while reading the front snapshot, or swapping
+	private Snapshot front = new Snapshot(), back = new Snapshot();
+	private long steps = 0;
+	private volatile int delay;						// ms to wait between steps
+	private volatile boolean running = false;
+	private Thread thread;
+
+	/**
+	 * @param world		the world to simulate; from now on, change it only via submit
+	 * @param delay		ms to wait between steps
+	 */
+	public Simulation(CollisionWorld world, int delay) {
+		this.world = world;
+		this.delay = delay;
+	}
+
+	/**
+	 * Has the command run on the simulation thread, before the next step
+	 * @param command	e.g., adding a blob
+	 */
+	public void submit(Runnable command) {
+		commands.add(command);
+	}
+
+	public void setDelay(int delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * Hands the latest snapshot to the reader; the next snapshot won't be swapped in until the reader is done
+	 * (but the step after this one can be computed in the meantime)
+	 * @param reader	e.g., drawing the blobs
+	 */
+	public void read(Consumer<Snapshot> reader) {
+		synchronized (swapLock) {
+			reader.accept(front);
+		}
+	}
+
+	/**
+	 * Runs one step: the pending commands, the world's step, and publishing a snapshot.
+	 * Called on the simulation thread, or directly when there's no thread.
+	 */
+	public void step() {
+		Runnable command;
+		while ((command = commands.poll()) != null) command.run();
+
+		Set<Blob> colliders = world.step();
+
+		back.fill(world.getBlobs(), colliders, ++steps);
+		synchronized (swapLock) {
+			Snapshot done = back;
+			back = front;
+			front = done;
+		}
+	}
+
+	/**
+	 * Starts stepping on a thread of its own, waiting the delay between steps
+	 */
+	public void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(() -> {
+			while (running) {
+				step();
+				try {
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops stepping, once the current step is done
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		if (thread != null) thread.join();
+	}
+}
@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A uniform grid over a fixed region, each cell holding the points that fall in it. For many
+ * points of about the same size, with cells about a point's diameter across, a circle query only
+ * looks at a few cells, and rebuilding is two passes of counting sort into arrays that are kept from
+ * one rebuild to the next, so a rebuild each step allocates nothing once they're big enough.
+ * The coords are stored in cell order, so the cells along a row of the query are one stretch of the
+ * arrays, tested in batches with Geometry.pointsInCircle.
+ *
+ * The cells are stored densely (cell = column + row*columns) rather than hashed, since the region is
+ * known; points outside it go in the nearest edge cell. Like ArrayQuadtree, it holds where the points
+ * were when it was built; rebuild it after they move.
+ */
+public class SpatialHashGrid<E extends Point2D> implements SpatialIndex<E> {
+	private static final int maxCellsAcross = 4096;	// cells per row or column, at most
+
+	private final double x1, y1;					// top left of the region
+	private final double cellWidth, cellHeight;		// size of each cell
+	private final int columns, rows;
+	private final int[] cellStart;					// cell c's points are items[cellStart[c]] through items[cellStart[c+1]-1]
+	private List<E> elements = new ArrayList<>();	// the points, by id (their index in the list built from)
+	private int n = 0;								// number of points
+	private int[] items = new int[0];				// point ids, grouped by cell
+	private int[] cellOf = new int[0];				// each id's cell
+	private double[] xs = new double[0], ys = new double[0];	// coords, in the same order as items
+	private double[] radii = new double[0];			// for findAllPairsWithin, in the same order as items, kept to reuse
+
+	/**
+	 * An empty grid over the region
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param cellSize	how wide and high to make the cells (about the diameter of a point's circle is good)
+	 */
+	public SpatialHashGrid(double x1, double y1, double x2, double y2, double cellSize) {
+		if (!(cellSize > 0)) throw new IllegalArgumentException("cell size must be positive");
+		this.x1 = x1;
+		this.y1 = y1;
+		columns = (int)Math.max(1, Math.min(maxCellsAcross, Math.ceil((x2-x1)/cellSize)));
+		rows = (int)Math.max(1, Math.min(maxCellsAcross, Math.ceil((y2-y1)/cellSize)));
+		cellWidth = Math.max((x2-x1)/columns, Double.MIN_VALUE);
+		cellHeight = Math.max((y2-y1)/rows, Double.MIN_VALUE);
+		cellStart = new int[columns*rows+1];
+	}
+
+	/**
+	 * Builds a grid holding all the points
+	 * @param points	points to put in the grid
+	 * @param x1		top left x coord
+	 * @param y1		top left y coord
+	 * @param x2		bottom right x coord
+	 * @param y2		bottom right y coord
+	 * @param cellSize	how wide and high to make the cells
+	 * @return			the grid
+	 */
+	public static <E extends Point2D> SpatialHashGrid<E> build(List<E> points, double x1, double y1, double x2, double y2, double cellSize) {
+		SpatialHashGrid<E> grid = new SpatialHashGrid<E>(x1, y1, x2, y2, cellSize);
+		grid.rebuild(points);
+		return grid;
+	}
+
+	/**
+	 * Replaces whatever the grid held with the points, where they are now.
+	 * Holds on to the list (rather than copying it), so rebuild again after changing it.
+	 * @param points	the points
+	 */
+	public void rebuild(List<E> points) {
+		elements = points;
+		n = points.size();
+		if (items.length < n) {
+			int length = Math.max(n, 2*items.length);
+			items = new int[length];
+			cellOf = new int[length];
+			xs = new double[length];
+			ys = new double[length];
+		}
+
+		// count the points per cell, then turn the counts into where each cell's points end
+		Arrays.fill(cellStart, 0);
+		for (int id = 0; id < n; id++) {
+			E p = points.get(id);
+			cellOf[id] = column(p.getX()) + row(p.getY())*columns;
+			cellStart[cellOf[id]+1]++;
+		}
+		for (int c = 1; c < cellStart.length; c++) cellStart[c] += cellStart[c-1];
+		// place each id, counting its cell's start up as we go, then shift the starts back down
+		for (int id = 0; id < n; id++) {
+			int k = cellStart[cellOf[id]]++;
+			E p = points.get(id);
+			items[k] = id;
+			xs[k] = p.getX();
+			ys[k] = p.getY();
+		}
+		for (int c = cellStart.length-1; c > 0; c--) cellStart[c] = cellStart[c-1];
+		cellStart[0] = 0;
+	}
+
+	/**
+	 * Which column the x coord falls in (the nearest, if it's outside the region)
+	 */
+	private int column(double x) {
+		return Math.max(0, Math.min(columns-1, (int)Math.floor((x-x1)/cellWidth)));
+	}
+
+	/**
+	 * Which row the y coord falls in (the nearest, if it's outside the region)
+	 */
+	private int row(double y) {
+		return Math.max(0, Math.min(rows-1, (int)Math.floor((y-y1)/cellHeight)));
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * All the points, cell by cell
+	 */
+	public List<E> allPoints() {
+		List<E> list = new ArrayList<>(n);
+		for (int k = 0; k < n; k++) list.add(elements.get(items[k]));
+		return list;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> list = new ArrayList<>();
+		findInCircle(cx, cy, cr, list::add);
+		return list;
+	}
+
+	/**
+	 * Hands each point in the circle to the sink, testing the points in the cells the circle's bounding box covers
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink) {
+		int col1 = column(cx-cr), col2 = column(cx+cr), row1 = row(cy-cr), row2 = row(cy+cr);
+		for (int row = row1; row <= row2; row++) {
+			// the row's cells are one stretch of the arrays, tested up to 64 at a time
+			int end = cellStart[col2 + row*columns + 1];
+			for (int from = cellStart[col1 + row*columns]; from < end; from += 64) {
+				long in = Geometry.pointsInCircle(xs, ys, from, Math.min(end, from+64), cx, cy, cr);
+				for (; in != 0; in &= in-1) sink.accept(elements.get(items[from + Long.numberOfTrailingZeros(in)]));
+			}
+		}
+	}
+
+	@Override
+	public boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		int col1 = column(cx-cr), col2 = column(cx+cr), row1 = row(cy-cr), row2 = row(cy+cr);
+		for (int row = row1; row <= row2; row++) {
+			int end = cellStart[col2 + row*columns + 1];
+			for (int from = cellStart[col1 + row*columns]; from < end; from += 64) {
+				long in = Geometry.pointsInCircle(xs, ys, from, Math.min(end, from+64), cx, cy, cr);
+				for (; in != 0; in &= in-1) {
+					if (test.test(elements.get(items[from + Long.numberOfTrailingZeros(in)]))) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch, looking around each point in turn, and reporting
+	 * a pair only from the one of its two points that comes first in the list, so that each is reported exactly once
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	@Override
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		if (radii.length < n) radii = new double[xs.length];
+		double maxR = 0;
+		for (int k = 0; k < n; k++) {
+			radii[k] = radius.applyAsDouble(elements.get(items[k]));
+			maxR = Math.max(maxR, radii[k]);
+		}
+
+		// around each point, in cell order, a row of cells at a time as in findInCircle
+		for (int k = 0; k < n; k++) {
+			int id = items[k];
+			double cx = xs[k], cy = ys[k], reach = radii[k] + maxR;
+			int col1 = column(cx-reach), col2 = column(cx+reach), row1 = row(cy-reach), row2 = row(cy+reach);
+			for (int row = row1; row <= row2; row++) {
+				int end = cellStart[col2 + row*columns + 1];
+				for (int from = cellStart[col1 + row*columns]; from < end; from += 64) {
+					long touching = Geometry.circlesTouching(xs, ys, radii, from, Math.min(end, from+64), cx, cy, radii[k]);
+					for (; touching != 0; touching &= touching-1) {
+						int other = items[from + Long.numberOfTrailingZeros(touching)];
+						if (other > id) pairs.accept(elements.get(id), elements.get(other));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * How wide the cells ended up (the region divided evenly, so maybe a bit less than asked for)
+	 */
+	public double getCellWidth() {
+		return cellWidth;
+	}
+}
@@ -0,0 +1,85 @@
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The queries that a spatial index over 2D points answers, so that
+ * callers (e.g., CollisionGUI) can switch between implementations
+ */
+public interface SpatialIndex<E extends Point2D> {
+	/**
+	 * How many points are in the index
+	 */
+	public int size();
+
+	/**
+	 * All the points in the index
+	 */
+	public List<E> allPoints();
+
+	/**
+	 * Finds all points within the circle
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @return		the points in the circle
+	 */
+	public List<E> findInCircle(double cx, double cy, double cr);
+
+	/**
+	 * Like findInCircle, but hands each point in the circle to the sink rather than building a list
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param sink	called with each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> sink);
+
+	/**
+	 * Whether any point within the circle passes the test; implementations should stop at the first one.
+	 * By default, it's a findInCircle that checks every point found.
+	 * @param cx	circle center x
+	 * @param cy	circle center y
+	 * @param cr	circle radius
+	 * @param test	what the point has to pass (e.g., not being the one at the center)
+	 * @return		true if some point in the circle passes
+	 */
+	public default boolean anyInCircle(double cx, double cy, double cr, Predicate<? super E> test) {
+		boolean[] found = { false };
+		findInCircle(cx, cy, cr, p -> {
+			if (!found[0] && test.test(p)) found[0] = true;
+		});
+		return found[0];
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch (distance at most the sum of their radii),
+	 * reporting each pair exactly once. By default, one circle query per point, grown by the largest
+	 * radius; a pair is reported by whichever of its points comes first in allPoints.
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	public default void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		List<E> points = allPoints();
+		Map<E, Integer> order = new IdentityHashMap<>();
+		double maxR = 0;
+		for (int i = 0; i < points.size(); i++) {
+			order.put(points.get(i), i);
+			maxR = Math.max(maxR, radius.applyAsDouble(points.get(i)));
+		}
+		for (int i = 0; i < points.size(); i++) {
+			E p = points.get(i);
+			double r = radius.applyAsDouble(p);
+			int first = i;
+			findInCircle(p.getX(), p.getY(), r + maxR, q -> {
+				if (order.get(q) > first && Geometry.pointInCircle(q.getX(), q.getY(), p.getX(), p.getY(), r + radius.applyAsDouble(q))) {
+					pairs.accept(p, q);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Sort-and-sweep collision detection: the points' circles are kept sorted by their left edges, and a
+ * sweep from left to right only compares each circle with those whose left edges come before its right
+ * edge. The order is kept from one call to the next and brought up to date with an insertion sort,
+ * which takes about linear time when the points have only moved a little since (as blobs do from step
+ * to step), rather than sorting from scratch.
+ *
+ * Unlike the trees it's not a general index, just a way of finding all the touching pairs; so it's
+ * told about points coming and going (add, removeAll), and finds where they are on each call.
+ */
+public class SweepAndPrune<E extends Point2D> {
+	private Object[] items;					// the points, by left edge as of the last sweep
+	private int n = 0;						// number of points
+	private double[] left = new double[0], right = new double[0];	// each one's circle's extent in x
+	private double[] xs = new double[0], ys = new double[0], rs = new double[0];	// and its center and radius
+	private long shifts = 0;				// how far the last sort had to move things
+
+	/**
+	 * Starts with the points, in any order
+	 * @param points	the points
+	 */
+	public SweepAndPrune(List<E> points) {
+		items = points.toArray();
+		n = items.length;
+		// roughly in order to start with, so that the first insertion sort doesn't take quadratic time
+		Arrays.sort(items, (a, b) -> Double.compare(((Point2D)a).getX(), ((Point2D)b).getX()));
+	}
+
+	/**
+	 * Adds a point, to be swept from the next call on
+	 */
+	public void add(E p) {
+		if (n == items.length) items = Arrays.copyOf(items, Math.max(16, 2*n));
+		items[n++] = p;
+	}
+
+	/**
+	 * Takes out the points (keeping the rest in order)
+	 */
+	public void removeAll(Collection<? extends E> gone) {
+		Set<Object> remove = Collections.newSetFromMap(new IdentityHashMap<>());
+		remove.addAll(gone);
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if (!remove.contains(items[i])) items[kept++] = items[i];
+		}
+		Arrays.fill(items, kept, n, null);
+		n = kept;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * How many places, in all, the last call's insertion sort moved points (low when they hadn't moved much)
+	 */
+	public long getShifts() {
+		return shifts;
+	}
+
+	/**
+	 * Finds every pair of points whose circles touch (distance at most the sum of their radii),
+	 * reporting each pair exactly once
+	 * @param radius	radius of each point's circle
+	 * @param pairs		called with each pair found
+	 */
+	public void findAllPairsWithin(ToDoubleFunction<? super E> radius, BiConsumer<? super E, ? super E> pairs) {
+		if (left.length < n) {
+			int length = Math.max(n, 2*left.length);
+			left = new double[length]; right = new double[length];
+			xs = new double[length]; ys = new double[length]; rs = new double[length];
+		}
+		for (int i = 0; i < n; i++) {
+			E p = item(i);
+			xs[i] = p.getX(); ys[i] = p.getY(); rs[i] = radius.applyAsDouble(p);
+			left[i] = xs[i] - rs[i];
+			right[i] = xs[i] + rs[i];
+		}
+		insertionSort();
+
+		// each circle against the ones starting before it ends, which are all together just after it,
+		// so they're tested in batches (the stretch only grows, so with mixed radii it may take in a few
+		// that start after this one ends; the test weeds those out)
+		for (int i = 0, end = 0; i < n; i++) {
+			if (end <= i) end = i+1;
+			while (end < n && left[end] <= right[i]) end++;
+			for (int from = i+1; from < end; from += 64) {
+				long touching = Geometry.circlesTouching(xs, ys, rs, from, Math.min(end, from+64), xs[i], ys[i], rs[i]);
+				for (; touching != 0; touching &= touching-1) pairs.accept(item(i), item(from + Long.numberOfTrailingZeros(touching)));
+			}
+		}
+	}
+
+	/**
+	 * Sorts everything by left edge, shifting each point back past the ones that are now to its right
+	 */
+	private void insertionSort() {
+		shifts = 0;
+		for (int i = 1; i < n; i++) {
+			if (left[i-1] <= left[i]) continue;
+			Object item = items[i];
+			double l = left[i], r = right[i], x = xs[i], y = ys[i], rad = rs[i];
+			int j = i;
+			while (j > 0 && left[j-1] > l) {
+				items[j] = items[j-1];
+				left[j] = left[j-1]; right[j] = right[j-1];
+				xs[j] = xs[j-1]; ys[j] = ys[j-1]; rs[j] = rs[j-1];
+				j--;
+			}
+			shifts += i-j;
+			items[j] = item;
+			left[j] = l; right[j] = r; xs[j] = x; ys[j] = y; rs[j] = rad;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E item(int i) {
+		return (E)items[i];
+	}
+}